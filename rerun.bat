@@ -10,6 +10,7 @@ if %ERRORLEVEL% neq 0 (
 
 echo Copying resources
 copy /Y resources\packages.txt out
+copy /Y resources\device-helper.sh out
 
 echo Running
 java -cp out Main %*
@@ -10,6 +10,7 @@ fi
 
 echo "Copying resources"
 cp resources/packages.txt out/
+cp resources/device-helper.sh out/
 
 echo "Running"
 java -cp out Main "$@"
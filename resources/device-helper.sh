@@ -0,0 +1,50 @@
+# Answers many small queries in one invocation: sh device-helper.sh <verb> <query>...
+# Every answer is one "<tag>\t<query>\t<value>" line, queries without an answer print nothing
+verb=$1
+shift
+case $verb in
+    paths)
+        # one package manager call for all packages, splits sit next to base.apk
+        wanted=" $* "
+        pm list packages -f 2>/dev/null | while IFS= read -r line; do
+            line=${line#package:}
+            pkg=${line##*=}
+            apk=${line%=*}
+            case $wanted in
+                *" $pkg "*) ;;
+                *) continue ;;
+            esac
+            if [ "${apk##*/}" = base.apk ]; then
+                for split in "${apk%/*}"/*.apk; do
+                    printf 'P\t%s\t%s\n' "$pkg" "$split"
+                done
+            else
+                printf 'P\t%s\t%s\n' "$pkg" "$apk"
+            fi
+        done
+        ;;
+    exists)
+        for path; do
+            if [ -e "$path" ] || [ -L "$path" ]; then
+                printf 'E\t%s\t1\n' "$path"
+            else
+                printf 'E\t%s\t0\n' "$path"
+            fi
+        done
+        ;;
+    sizes)
+        for dir; do
+            if [ -e "$dir" ]; then
+                kb=$(du -sk "$dir" 2>/dev/null)
+                kb=${kb%%[!0-9]*}
+                printf 'S\t%s\t%s\n' "$dir" $((${kb:-0} * 1024))
+            else
+                printf 'S\t%s\t-1\n' "$dir"
+            fi
+        done
+        ;;
+    *)
+        echo "unknown verb: $verb" >&2
+        exit 2
+        ;;
+esac
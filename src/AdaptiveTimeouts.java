@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Deadlines learned from how long each workload actually takes on each device. A workload is a template plus an
+// optional shape tag for uses of it that cost differently (a dump of one package or of all, 'ls -1' or 'ls -l').
+// Batches (n queries, a script of n commands) learn the latency per item and get it times their item count.
+// Until a workload has enough samples its hard-coded default applies.
+// Learned deadline = p95 of recent latencies * HEADROOM + FLOOR, transfers get size / MIN_THROUGHPUT on top.
+// Samples persist between runs in a tab separated file: device, workload key, comma separated latencies
+class AdaptiveTimeouts {
+    private static final int WINDOW = 32;
+    private static final int MIN_SAMPLES = 5;
+    private static final double PERCENTILE = 0.95;
+    private static final int HEADROOM = 3;
+    private static final long FLOOR_MS = 500;
+    private static final long CEILING_MS = 120_000;
+    // 1 MB/s, slow USB 2 ports and MTP-busy devices still manage this
+    private static final long MIN_THROUGHPUT_BYTES_PER_MS = 1024;
+
+    private final Map<String, LatencyWindow> windows = new ConcurrentHashMap<>();
+
+    public long deadlineFor(String device, CommandTemplate template, long defaultMs) {
+        return deadlineFor(device, template, "", 1, defaultMs, 0);
+    }
+
+    public long deadlineFor(String device, CommandTemplate template, long defaultMs, long transferBytes) {
+        return deadlineFor(device, template, "", 1, defaultMs, transferBytes);
+    }
+
+    // defaultMs is for the whole run, all items
+    public long deadlineFor(String device, CommandTemplate template, String shape, int items, long defaultMs, long transferBytes) {
+        long allowance = transferBytes / MIN_THROUGHPUT_BYTES_PER_MS;
+        LatencyWindow window = windows.get(keyOf(device, template, shape));
+        if (window == null || window.size() < MIN_SAMPLES) {
+            return defaultMs + allowance;
+        }
+        long learned = window.percentile(PERCENTILE) * Math.max(1, items) * HEADROOM + FLOOR_MS;
+        return Math.min(learned, CEILING_MS) + allowance;
+    }
+
+    public void record(String device, CommandTemplate template, long elapsedMs, long deadlineMs, long transferBytes) {
+        record(device, template, "", 1, elapsedMs, deadlineMs, transferBytes);
+    }
+
+    // A run that hit its deadline is recorded at twice the deadline so the next one gets more time
+    public void record(String device, CommandTemplate template, String shape, int items, long elapsedMs, long deadlineMs,
+                       long transferBytes) {
+        long latency = elapsedMs >= deadlineMs ? 2 * deadlineMs : elapsedMs;
+        latency = Math.max(0, latency - transferBytes / MIN_THROUGHPUT_BYTES_PER_MS) / Math.max(1, items);
+        windows.computeIfAbsent(keyOf(device, template, shape), key -> new LatencyWindow()).add(latency);
+    }
+
+    private static String keyOf(String device, CommandTemplate template, String shape) {
+        String workload = shape.isEmpty() ? template.key() : template.key() + " [" + shape + "]";
+        return (device == null ? "" : device) + '\t' + workload;
+    }
+
+    public void load(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Failed to load timeouts: " + e.getMessage());
+            return;
+        }
+        for (String line : lines) {
+            int lastTab = line.lastIndexOf('\t');
+            if (lastTab <= 0) {
+                continue;
+            }
+            LatencyWindow window = new LatencyWindow();
+            for (String sample : line.substring(lastTab + 1).split(",")) {
+                try {
+                    window.add(Long.parseLong(sample));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            windows.put(line.substring(0, lastTab), window);
+        }
+    }
+
+    public void save(Path path) {
+        StringBuilder content = new StringBuilder();
+        windows.forEach((key, window) -> content.append(key).append('\t').append(window).append('\n'));
+        try {
+            Files.write(path, content.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Failed to save timeouts: " + e.getMessage());
+        }
+    }
+
+    // Ring buffer of the most recent latencies in ms
+    private static class LatencyWindow {
+        private final long[] samples = new long[WINDOW];
+        private int count, next;
+
+        synchronized void add(long latency) {
+            samples[next] = latency;
+            next = (next + 1) % WINDOW;
+            count = Math.min(count + 1, WINDOW);
+        }
+
+        synchronized int size() {
+            return count;
+        }
+
+        synchronized long percentile(double p) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(p * count) - 1;
+            return sorted[Math.max(0, index)];
+        }
+
+        // Oldest first, so reloading keeps the order
+        @Override
+        public synchronized String toString() {
+            List<String> ordered = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ordered.add(String.valueOf(samples[(next - count + i + WINDOW) % WINDOW]));
+            }
+            return String.join(",", ordered);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Talks to the adb server (localhost:5037) directly instead of forking the adb client, which would connect to it anyway.
+// Requests are a 4 digit hex length followed by the payload, the server answers OKAY, or FAIL + hex length + message.
+// Device services (shell, exec, sync) run on a connection that was first switched to the device with host:transport
+class AdbClient {
+    public static final int DEFAULT_PORT = 5037;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int REPLY_TIMEOUT_MS = 10_000;
+    // shell protocol v2 packet ids
+    private static final int ID_STDOUT = 1, ID_STDERR = 2, ID_EXIT = 3, ID_CLOSE_STDIN = 4;
+
+    private final String host;
+    private final int port;
+    private final Map<String, String> featuresBySerial = new ConcurrentHashMap<>();
+
+    public AdbClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // Honors ANDROID_ADB_SERVER_PORT like the adb client does
+    public static AdbClient fromEnv() {
+        int port = DEFAULT_PORT;
+        String envPort = System.getenv("ANDROID_ADB_SERVER_PORT");
+        if (envPort != null) {
+            try {
+                port = Integer.parseInt(envPort.trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return new AdbClient("127.0.0.1", port);
+    }
+
+    public int version() throws IOException {
+        try (Socket socket = connect()) {
+            String reply = query(socket, "host:version");
+            try {
+                return Integer.parseInt(reply.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed adb server version: " + reply);
+            }
+        }
+    }
+
+    // What 'adb devices' prints below its header: "serial\tstate" lines, longFormat appends product, model etc.
+    public String devices(boolean longFormat) throws IOException {
+        try (Socket socket = connect()) {
+            return query(socket, longFormat ? "host:devices-l" : "host:devices");
+        }
+    }
+
+    // After OKAY the server sends the device list (as host:devices, length prefixed) now and on every change
+    public Socket openDeviceTracking() throws IOException {
+        Socket socket = connect();
+        try {
+            send(socket, "host:track-devices");
+            readStatus(socket);
+            socket.setSoTimeout(0);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    // Comma separated features of the device and server, e.g. shell_v2,cmd,stat_v2,ls_v2
+    public String features(String serial) throws IOException {
+        String key = serial == null ? "" : serial;
+        String features = featuresBySerial.get(key);
+        if (features != null) {
+            return features;
+        }
+        try (Socket socket = connect()) {
+            features = query(socket, serial == null ? "host:features" : "host-serial:" + serial + ":features");
+        }
+        featuresBySerial.put(key, features);
+        return features;
+    }
+
+    public boolean hasFeature(String serial, String feature) throws IOException {
+        return Arrays.asList(features(serial).trim().split(",")).contains(feature);
+    }
+
+    // adbd may come back with different features after a restart
+    public void clearFeatures() {
+        featuresBySerial.clear();
+    }
+
+    // Returns a connection switched to the device, ready for a device service.
+    // A null serial means the only connected device, the server fails if there are more
+    public Socket openTransport(String serial) throws IOException {
+        Socket socket = connect();
+        try {
+            send(socket, serial == null ? "host:transport-any" : "host:transport:" + serial);
+            readStatus(socket);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    // Same as openTransport, as a blocking channel for services that move bulk data through NIO buffers
+    public SocketChannel openTransportChannel(String serial) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(REPLY_TIMEOUT_MS);
+            send(socket, serial == null ? "host:transport-any" : "host:transport:" + serial);
+            readStatus(socket);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Runs commandLine with the device shell, like 'adb shell <commandLine>'
+    public ShellStream openShell(String serial, String commandLine) throws IOException {
+        boolean v2 = hasFeature(serial, "shell_v2");
+        Socket socket = openTransport(serial);
+        try {
+            if (v2) {
+                send(socket, "shell,v2,raw:" + commandLine);
+                readStatus(socket);
+                // nothing is ever written to the command's stdin, closing it lets commands like cat see EOF
+                OutputStream out = socket.getOutputStream();
+                out.write(new byte[]{ID_CLOSE_STDIN, 0, 0, 0, 0});
+                out.flush();
+                return new ShellStream(socket, true);
+            }
+            // the legacy shell service can't close stdin on its own, so the command doesn't get one
+            send(socket, "shell:(" + commandLine + ") </dev/null");
+            readStatus(socket);
+            return new ShellStream(socket, false);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    // Runs commandLine without a shell protocol, the stream is the command's raw stdout
+    public ShellStream openExec(String serial, String commandLine) throws IOException {
+        Socket socket = openTransport(serial);
+        try {
+            send(socket, "exec:" + commandLine);
+            readStatus(socket);
+            return new ShellStream(socket, false);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(REPLY_TIMEOUT_MS);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    static void send(Socket socket, String request) throws IOException {
+        byte[] payload = request.getBytes(StandardCharsets.UTF_8);
+        byte[] message = new byte[4 + payload.length];
+        System.arraycopy(String.format("%04x", payload.length).getBytes(StandardCharsets.US_ASCII), 0, message, 0, 4);
+        System.arraycopy(payload, 0, message, 4, payload.length);
+        OutputStream out = socket.getOutputStream();
+        out.write(message);
+        out.flush();
+    }
+
+    static void readStatus(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        String status = new String(readExactly(in, 4), StandardCharsets.US_ASCII);
+        if (status.equals("OKAY")) {
+            return;
+        }
+        if (status.equals("FAIL")) {
+            throw new FailException(readLengthPrefixed(in));
+        }
+        throw new IOException("Unexpected adb server reply: " + status);
+    }
+
+    private static String query(Socket socket, String request) throws IOException {
+        send(socket, request);
+        readStatus(socket);
+        return readLengthPrefixed(socket.getInputStream());
+    }
+
+    static String readLengthPrefixed(InputStream in) throws IOException {
+        String hexLength = new String(readExactly(in, 4), StandardCharsets.US_ASCII);
+        int length;
+        try {
+            length = Integer.parseInt(hexLength, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed adb server length: " + hexLength);
+        }
+        return new String(readExactly(in, length), StandardCharsets.UTF_8);
+    }
+
+    static byte[] readExactly(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(bytes, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException("adb server closed the connection");
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+    // The server understood the request and refused it, e.g. "device offline" or "more than one device/emulator"
+    static class FailException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FailException(String message) {
+            super(message);
+        }
+    }
+
+    // Output of a command running on the device, stdout and stderr interleaved in arrival order
+    // like a process started with redirectErrorStream. The connection closes itself at the end of the output
+    static class ShellStream implements RunningCommand {
+        private final Socket socket;
+        private final InputStream output;
+        private volatile int exitCode = -1;
+
+        private ShellStream(Socket socket, boolean v2) throws IOException {
+            this.socket = socket;
+            // from here on the caller enforces deadlines and closes the connection
+            socket.setSoTimeout(0);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            this.output = v2 ? new ShellProtocolInputStream(in) : new RawInputStream(in);
+        }
+
+        @Override
+        public InputStream getOutput() {
+            return output;
+        }
+
+        // -1 until the exit packet arrived, always -1 without shell protocol v2
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        // adbd kills the command once its stream is closed
+        @Override
+        public void kill() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private class RawInputStream extends FilterInputStream {
+            RawInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = in.read(b, off, len);
+                if (read == -1) {
+                    kill();
+                }
+                return read;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public void close() {
+                kill();
+            }
+        }
+
+        // Shell protocol v2 packets: 1 byte id, 4 byte little endian length, payload
+        private class ShellProtocolInputStream extends RawInputStream {
+            private int remaining = 0; // payload left in the current stdout/stderr packet
+            private boolean ended = false;
+
+            ShellProtocolInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (remaining == 0) {
+                    if (ended || !nextPacket()) {
+                        ended = true;
+                        kill();
+                        return -1;
+                    }
+                }
+                int read = in.read(b, off, Math.min(len, remaining));
+                if (read == -1) {
+                    ended = true;
+                    kill();
+                    return -1;
+                }
+                remaining -= read;
+                return read;
+            }
+
+            // Returns false at the exit packet or the end of the stream
+            private boolean nextPacket() throws IOException {
+                int id = in.read();
+                if (id == -1) {
+                    return false;
+                }
+                byte[] header = readExactly(in, 4);
+                int length = (header[0] & 0xff) | (header[1] & 0xff) << 8 | (header[2] & 0xff) << 16 | (header[3] & 0xff) << 24;
+                if (id == ID_STDOUT || id == ID_STDERR) {
+                    remaining = length;
+                    return true;
+                }
+                byte[] payload = readExactly(in, length);
+                if (id == ID_EXIT) {
+                    exitCode = length > 0 ? payload[0] & 0xff : -1;
+                    return false;
+                }
+                return true;
+            }
+        }
+    }
+}
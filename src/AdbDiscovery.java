@@ -0,0 +1,124 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+// Where adb was found last time, so a warm start doesn't have to run adb to find it again.
+// One tab separated line: mode (ENV for adb on the PATH, DIR for a directory given by the user),
+// the adb binary, its version and the binary's size and mtime. The record only counts while the binary
+// is unchanged and, for ENV, still the one the PATH resolves to
+class AdbDiscovery {
+    private static final String RECORD_FILE = "adb-discovery.txt";
+    public static final String ENV = "ENV", DIR = "DIR";
+
+    public final String mode;
+    public final Path binary;
+    public final String version;
+    private final long size, mtime;
+
+    private AdbDiscovery(String mode, Path binary, String version, long size, long mtime) {
+        this.mode = mode;
+        this.binary = binary;
+        this.version = version;
+        this.size = size;
+        this.mtime = mtime;
+    }
+
+    // Returns null if the binary can't be read
+    public static AdbDiscovery of(String mode, Path binary, String version) {
+        try {
+            return new AdbDiscovery(mode, binary, version, Files.size(binary), Files.getLastModifiedTime(binary).toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Returns null if there's no record or it no longer describes the adb that would be found
+    public static AdbDiscovery load() {
+        Path path = Utilities.pathNextToExecutable(RECORD_FILE);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+        if (lines.isEmpty()) {
+            return null;
+        }
+        String[] fields = lines.get(0).split("\t", -1);
+        if (fields.length != 5 || !(fields[0].equals(ENV) || fields[0].equals(DIR))) {
+            return null;
+        }
+        AdbDiscovery record;
+        try {
+            record = new AdbDiscovery(fields[0], Paths.get(fields[1]), fields[2], Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+        } catch (NumberFormatException | InvalidPathException e) {
+            return null;
+        }
+        return record.isCurrent() ? record : null;
+    }
+
+    private boolean isCurrent() {
+        AdbDiscovery current = of(mode, binary, version);
+        if (current == null || current.size != size || current.mtime != mtime) {
+            return false;
+        }
+        return !mode.equals(ENV) || binary.equals(findOnPath());
+    }
+
+    public void save() {
+        String line = mode + '\t' + binary + '\t' + version + '\t' + size + '\t' + mtime + '\n';
+        try {
+            Files.write(Utilities.pathNextToExecutable(RECORD_FILE), line.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Failed to save adb location: " + e.getMessage());
+        }
+    }
+
+    // The adb binary the OS would run for a plain "adb", null if there's none on the PATH
+    public static Path findOnPath() {
+        String pathVar = System.getenv("PATH");
+        if (pathVar == null) {
+            return null;
+        }
+        for (String dir : pathVar.split(File.pathSeparator)) {
+            if (dir.isEmpty()) {
+                continue;
+            }
+            Path found = findIn(dir);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    // The adb binary in dir, null if there's none
+    public static Path findIn(String dir) {
+        boolean windows = System.getProperty("os.name").toLowerCase().startsWith("windows");
+        try {
+            Path candidate = Paths.get(dir).resolve(windows ? "adb.exe" : "adb").toAbsolutePath();
+            return Files.isRegularFile(candidate) && Files.isExecutable(candidate) ? candidate : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    // "Android Debug Bridge version 1.0.41" -> "1.0.41"
+    public static String parseVersion(String banner) {
+        String firstLine = banner.split("\n", 2)[0].trim();
+        int space = firstLine.lastIndexOf(' ');
+        return space == -1 ? "" : firstLine.substring(space + 1);
+    }
+
+    public String getDirectory() {
+        return binary.getParent().toString();
+    }
+}
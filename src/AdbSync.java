@@ -0,0 +1,245 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+// adb's file sync protocol on a 'sync:' connection: STAT/STA2, LIST/LIS2, RECV, SEND, DONE and QUIT.
+// Every message is a 4 byte id followed by a 4 byte little endian length (or value). File data moves in DATA
+// packets of at most 64 KB which are gathered in a large direct buffer, so the file channel sees few big reads and writes.
+// One instance is one connection, transfers running in parallel need one each
+class AdbSync implements Closeable {
+    private static final int MAX_DATA = 64 * 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int STAT_V2_REPLY_LENGTH = 68; // after the id
+    private static final int DENT_REPLY_LENGTH = 16, DENT_V2_REPLY_LENGTH = 72; // after the id, up to the name
+
+    private static final int ID_STAT = id("STAT"), ID_STA2 = id("STA2"), ID_LIST = id("LIST"), ID_LIS2 = id("LIS2"),
+            ID_DENT = id("DENT"), ID_DNT2 = id("DNT2"), ID_RECV = id("RECV"), ID_SEND = id("SEND"),
+            ID_DATA = id("DATA"), ID_DONE = id("DONE"), ID_OKAY = id("OKAY"), ID_FAIL = id("FAIL"), ID_QUIT = id("QUIT");
+
+    private final SocketChannel channel;
+    private final boolean statV2, listV2;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(8).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer packetHeader = ByteBuffer.allocateDirect(8).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private AdbSync(SocketChannel channel, boolean statV2, boolean listV2) {
+        this.channel = channel;
+        this.statV2 = statV2;
+        this.listV2 = listV2;
+    }
+
+    // Throws AdbClient.FailException if the server refused the device or the sync service
+    public static AdbSync open(AdbClient client, String serial) throws IOException {
+        boolean statV2 = client.hasFeature(serial, "stat_v2");
+        boolean listV2 = client.hasFeature(serial, "ls_v2");
+        SocketChannel channel = client.openTransportChannel(serial);
+        try {
+            AdbClient.send(channel.socket(), "sync:");
+            AdbClient.readStatus(channel.socket());
+            // deadlines are enforced by closing the channel from another thread
+            channel.socket().setSoTimeout(0);
+            return new AdbSync(channel, statV2, listV2);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static int id(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        return (bytes[0] & 0xff) | (bytes[1] & 0xff) << 8 | (bytes[2] & 0xff) << 16 | (bytes[3] & 0xff) << 24;
+    }
+
+    // Returns null if the path doesn't exist or can't be reached.
+    // Follows symlinks when the device supports stat_v2, describes the link itself otherwise
+    public DirEntry stat(String remotePath) throws IOException {
+        sendRequest(statV2 ? ID_STA2 : ID_STAT, remotePath);
+        String name = remotePath.substring(remotePath.lastIndexOf('/', remotePath.length() - 2) + 1);
+        if (!statV2) {
+            ByteBuffer reply = readExactly(16);
+            expect(reply.getInt(0), ID_STAT);
+            // all zeroes if lstat failed
+            int mode = reply.getInt(4);
+            return mode == 0 ? null : new DirEntry(name, mode, reply.getInt(8) & 0xffffffffL, reply.getInt(12) & 0xffffffffL);
+        }
+        ByteBuffer reply = readExactly(4 + STAT_V2_REPLY_LENGTH);
+        expect(reply.getInt(0), ID_STA2);
+        if (reply.getInt(4) != 0) {
+            // errno
+            return null;
+        }
+        // error, dev, ino, mode, nlink, uid, gid, size, atime, mtime, ctime
+        return new DirEntry(name, reply.getInt(24), reply.getLong(40), reply.getLong(56));
+    }
+
+    // Hands every entry of the directory except . and .. to onEntry, symlinks describe the link itself.
+    // Lists nothing if the directory doesn't exist or can't be read
+    public void list(String remoteDir, Consumer<DirEntry> onEntry) throws IOException {
+        sendRequest(listV2 ? ID_LIS2 : ID_LIST, remoteDir);
+        int fixedLength = listV2 ? DENT_V2_REPLY_LENGTH : DENT_REPLY_LENGTH;
+        ByteBuffer reply = ByteBuffer.allocate(4 + fixedLength).order(ByteOrder.LITTLE_ENDIAN);
+        while (true) {
+            reply.clear();
+            readFully(reply);
+            int id = reply.getInt(0);
+            if (id == ID_DONE) {
+                return;
+            }
+            expect(id, listV2 ? ID_DNT2 : ID_DENT);
+            String name = readString(reply.getInt(fixedLength));
+            if (name.equals(".") || name.equals("..")) {
+                continue;
+            }
+            if (!listV2) {
+                onEntry.accept(new DirEntry(name, reply.getInt(4), reply.getInt(8) & 0xffffffffL, reply.getInt(12) & 0xffffffffL));
+            } else if (reply.getInt(4) == 0) {
+                // entries that couldn't be lstat-ed carry an errno
+                onEntry.accept(new DirEntry(name, reply.getInt(24), reply.getLong(40), reply.getLong(56)));
+            }
+        }
+    }
+
+    // Copies the remote file into local, returns the number of bytes written.
+    // Throws AdbClient.FailException with the device's message if it refused to send the file
+    public long pull(String remotePath, Path local) throws IOException {
+        sendRequest(ID_RECV, remotePath);
+        long total = 0;
+        try (FileChannel file = FileChannel.open(local, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.clear();
+            while (true) {
+                packetHeader.clear();
+                readFully(packetHeader);
+                int id = packetHeader.getInt(0);
+                int length = packetHeader.getInt(4);
+                if (id == ID_DONE) {
+                    break;
+                }
+                if (id == ID_FAIL) {
+                    throw new AdbClient.FailException(readString(length));
+                }
+                expect(id, ID_DATA);
+                if (length < 0 || length > MAX_DATA) {
+                    throw new IOException("Malformed sync DATA length: " + length);
+                }
+                if (buffer.remaining() < length) {
+                    flush(file);
+                }
+                buffer.limit(buffer.position() + length);
+                readFully(buffer);
+                buffer.limit(buffer.capacity());
+                total += length;
+            }
+            flush(file);
+        }
+        return total;
+    }
+
+    private void flush(FileChannel file) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Copies local to remotePath with the given permission bits, returns the number of bytes sent.
+    // Throws AdbClient.FailException with the device's message if it couldn't write the file
+    public long push(Path local, String remotePath, int permissions, long mtimeSeconds) throws IOException {
+        sendRequest(ID_SEND, remotePath + "," + (DirEntry.S_IFREG | (permissions & 0777)));
+        long total = 0;
+        try (FileChannel file = FileChannel.open(local, StandardOpenOption.READ)) {
+            while (true) {
+                buffer.clear();
+                int read = file.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    int chunk = Math.min(buffer.remaining(), MAX_DATA);
+                    ByteBuffer data = buffer.slice();
+                    data.limit(chunk);
+                    writeMessage(ID_DATA, chunk, data);
+                    buffer.position(buffer.position() + chunk);
+                }
+                total += read;
+            }
+        }
+        writeMessage(ID_DONE, (int) mtimeSeconds, null);
+        ByteBuffer reply = readExactly(8);
+        int id = reply.getInt(0);
+        if (id == ID_FAIL) {
+            throw new AdbClient.FailException(readString(reply.getInt(4)));
+        }
+        expect(id, ID_OKAY);
+        return total;
+    }
+
+    private void sendRequest(int id, String path) throws IOException {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        writeMessage(id, bytes.length, ByteBuffer.wrap(bytes));
+    }
+
+    private void writeMessage(int id, int value, ByteBuffer payload) throws IOException {
+        header.clear();
+        header.putInt(id).putInt(value).flip();
+        ByteBuffer[] message = payload == null ? new ByteBuffer[]{header} : new ByteBuffer[]{header, payload};
+        while (header.hasRemaining() || (payload != null && payload.hasRemaining())) {
+            channel.write(message);
+        }
+    }
+
+    private ByteBuffer readExactly(int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(bytes);
+        return bytes;
+    }
+
+    private void readFully(ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target) == -1) {
+                throw new EOFException("adb closed the sync connection");
+            }
+        }
+    }
+
+    private String readString(int length) throws IOException {
+        if (length < 0 || length > MAX_DATA) {
+            throw new IOException("Malformed sync message length: " + length);
+        }
+        return new String(readExactly(length).array(), StandardCharsets.UTF_8);
+    }
+
+    private static void expect(int id, int expected) throws IOException {
+        if (id != expected) {
+            throw new IOException("Unexpected sync reply id: 0x" + Integer.toHexString(id));
+        }
+    }
+
+    // Unblocks a transfer from another thread, the connection can't be used afterwards
+    public void abort() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel.isOpen()) {
+            try {
+                writeMessage(ID_QUIT, 0, null);
+            } catch (IOException ignored) {
+            }
+        }
+        abort();
+    }
+}
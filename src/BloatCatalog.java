@@ -0,0 +1,166 @@
+import java.util.*;
+import java.util.function.Function;
+
+// The packages debloat removes (packages.txt), indexed by name.
+// A line is a package name optionally followed by whitespace separated key=value attributes:
+//   vendor=<name>  category=<name>  risk=low|medium|high (low if not given)
+//   requires=<pkg>[,<pkg>]  the package uses those, it's removed before them
+//   after=<pkg>[,<pkg>]     the package is removed only once those are gone
+// Lines starting with '#' are comments, lines of only a package name (the old format) still load
+class BloatCatalog {
+    public static final String LOW_RISK = "low";
+
+    static class Entry {
+        public final String name;
+        public String vendor = "", category = "", risk = LOW_RISK;
+        public List<String> requires = Collections.emptyList(), after = Collections.emptyList();
+
+        Entry(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    public static BloatCatalog parse(List<String> lines) {
+        BloatCatalog catalog = new BloatCatalog();
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] fields = trimmed.split("\\s+");
+            Entry entry = new Entry(fields[0]);
+            for (int i = 1; i < fields.length; i++) {
+                int eq = fields[i].indexOf('=');
+                if (eq <= 0) {
+                    System.err.println("Ignoring '" + fields[i] + "' of " + entry.name + ", attributes are key=value");
+                    continue;
+                }
+                String value = fields[i].substring(eq + 1);
+                switch (fields[i].substring(0, eq)) {
+                    case "vendor":
+                        entry.vendor = value;
+                        break;
+                    case "category":
+                        entry.category = value;
+                        break;
+                    case "risk":
+                        entry.risk = value;
+                        break;
+                    case "requires":
+                        entry.requires = splitNames(value);
+                        break;
+                    case "after":
+                        entry.after = splitNames(value);
+                        break;
+                    default:
+                        System.err.println("Ignoring unknown attribute '" + fields[i] + "' of " + entry.name);
+                }
+            }
+            catalog.entries.put(entry.name, entry);
+        }
+        return catalog;
+    }
+
+    private static List<String> splitNames(String value) {
+        List<String> names = new ArrayList<>();
+        for (String name : value.split(",")) {
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Returns null if the package isn't in the catalog
+    public Entry get(String pkgName) {
+        return entries.get(pkgName);
+    }
+
+    // In file order
+    public List<String> names() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    // Number of packages per attribute value, most common first
+    public List<Map.Entry<String, Integer>> countBy(Function<Entry, String> attribute) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Entry entry : entries.values()) {
+            String value = attribute.apply(entry);
+            counts.merge(value.isEmpty() ? "unknown" : value, 1, Integer::sum);
+        }
+        List<Map.Entry<String, Integer>> sorted = new ArrayList<>(counts.entrySet());
+        sorted.sort((a, b) -> b.getValue() - a.getValue());
+        return sorted;
+    }
+
+    // Orders the packages so every package comes before what it requires and after what it's removed after.
+    // Only edges between the given packages count, a package that isn't installed constrains nothing.
+    // Ties keep the given order. Packages in a cycle (and those waiting on it) come last, in the given order
+    public List<String> removalOrder(List<String> pkgNames) {
+        Map<String, Integer> position = new LinkedHashMap<>();
+        for (String pkgName : pkgNames) {
+            position.putIfAbsent(pkgName, position.size());
+        }
+        List<String> unique = new ArrayList<>(position.keySet());
+        // first -> packages that have to wait for it
+        Map<String, List<String>> successors = new HashMap<>();
+        Map<String, Integer> waitingOn = new HashMap<>();
+        for (String pkgName : unique) {
+            waitingOn.put(pkgName, 0);
+        }
+        for (String pkgName : unique) {
+            Entry entry = entries.get(pkgName);
+            if (entry == null) {
+                continue;
+            }
+            for (String required : entry.requires) {
+                addEdge(pkgName, required, successors, waitingOn);
+            }
+            for (String first : entry.after) {
+                addEdge(first, pkgName, successors, waitingOn);
+            }
+        }
+
+        PriorityQueue<String> ready = new PriorityQueue<>(Comparator.comparing(position::get));
+        for (String pkgName : unique) {
+            if (waitingOn.get(pkgName) == 0) {
+                ready.add(pkgName);
+            }
+        }
+        List<String> order = new ArrayList<>(unique.size());
+        while (!ready.isEmpty()) {
+            String pkgName = ready.poll();
+            order.add(pkgName);
+            for (String next : successors.getOrDefault(pkgName, Collections.emptyList())) {
+                if (waitingOn.merge(next, -1, Integer::sum) == 0) {
+                    ready.add(next);
+                }
+            }
+        }
+        if (order.size() < unique.size()) {
+            List<String> cycle = new ArrayList<>();
+            for (String pkgName : unique) {
+                if (waitingOn.get(pkgName) > 0) {
+                    cycle.add(pkgName);
+                }
+            }
+            System.err.println("These packages require each other in a cycle or wait on one, they're removed in list order: " + cycle);
+            order.addAll(cycle);
+        }
+        return order;
+    }
+
+    private static void addEdge(String first, String then, Map<String, List<String>> successors, Map<String, Integer> waitingOn) {
+        if (first.equals(then) || !waitingOn.containsKey(first) || !waitingOn.containsKey(then)) {
+            return;
+        }
+        successors.computeIfAbsent(first, k -> new ArrayList<>()).add(then);
+        waitingOn.merge(then, 1, Integer::sum);
+    }
+}
@@ -7,11 +7,19 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class CLI {
     private static final String PACKAGES_SRC = "/packages.txt";
     private static final boolean SKIP_DEVICE_STAGE = false;
+    // how long a rebooting device gets to show up in fastboot before asking to refresh manually
+    private static final long FASTBOOT_WAIT_MS = 60_000;
     private static final String STORAGE_EMULATED_0 = "/storage/emulated/0/"; // symbolic link to /data/media/0/
     private static final String SYSTEM_PRIV_APP = "/system/priv-app/"; // possible to debloat these apps
     private static final String DATA_USER_0 = "/data/user/0/";
@@ -24,6 +32,7 @@ public class CLI {
     private static final String DEV_BLOCK_BY_NAME = "/dev/block/by-name/";
 
     private Commands commands;
+    private BloatCatalog catalog;
     private List<String> bloatedPackages;
     private final Scanner scanner = new Scanner(System.in);
     private Set<String> packages;
@@ -51,12 +60,17 @@ public class CLI {
         try {
             InputStream packagesStream = url.openStream();
             String readLines = Utilities.readFully(packagesStream);
-            bloatedPackages = Utilities.readAllLines(readLines);
+            catalog = BloatCatalog.parse(Utilities.readAllLines(readLines));
+            bloatedPackages = catalog.names();
         } catch (IOException ioException) {
             errorExit("Error reading packages with file.. exiting");
         }
-        System.out.println(bloatedPackages.size() + " packages loaded from packages.txt:");
-        System.out.println(bloatedPackages);
+        // only the installed ones get listed, before uninstalling them
+        StringBuilder vendors = new StringBuilder();
+        for (Map.Entry<String, Integer> vendor : catalog.countBy(entry -> entry.vendor)) {
+            vendors.append(vendors.length() == 0 ? "" : ", ").append(vendor.getKey()).append(' ').append(vendor.getValue());
+        }
+        System.out.println(bloatedPackages.size() + " packages loaded from packages.txt (" + vendors + ")");
     }
 
     protected void start(String[] args) {
@@ -64,10 +78,10 @@ public class CLI {
         String action = args[0];
         switch (action) {
             case "debloat":
-                debloat(false);
+                debloat(false, Options.parseOptions(args, 1).resume);
                 break;
             case "debloat-full":
-                debloat(true);
+                debloat(true, Options.parseOptions(args, 1).resume);
                 break;
             case "debloat-undo":
                 ensureArgument(args, 1, "Undoing debloat requires a list of packages");
@@ -311,29 +325,30 @@ public class CLI {
             } break;
 
             case "get-logs": {
-                String logFile = "logs.txt";
-                String phonePath = STORAGE_EMULATED_0 + logFile;
-                String logcatResult = commands.dumpLogs(phonePath);
-                if (logcatResult.startsWith("logcat:")) {
-                    errorExit(logcatResult);
+                Path logFile = Paths.get("logs.txt");
+                try (OutputBuffer logs = commands.captureLogs()) {
+                    // an error is all logcat prints then, it's short
+                    if (!logs.isSpilled() && logs.toString().startsWith("logcat:")) {
+                        errorExit(logs.toString());
+                    }
+                    int size = logs.size();
+                    logs.saveTo(logFile);
+                    System.out.println("Saved " + size + " bytes of logs to " + logFile.toAbsolutePath());
+                } catch (IOException e) {
+                    errorExit("Failed to save logs: " + e.getMessage());
                 }
-                String pullResult = commands.pull(phonePath);
-                System.out.println(pullResult);
-                commands.rm(phonePath);
             } break;
 
             case "ab-info":
             case "AB-info": {
-                String abUpdate = commands.getProp("ro.build.ab_update");
-                String slotSuffix = commands.getProp("ro.boot.slot_suffix");
-                System.out.println("A/B partitioned: " + abUpdate);
-                System.out.println("Slot suffix: " + slotSuffix);
+                DeviceProps props = commands.getDeviceProps();
+                System.out.println("A/B partitioned: " + props.isAB());
+                System.out.println("Slot suffix: " + props.getSlotSuffix());
             } break;
 
             case "list": {
                 Options opts = Options.parseOptions(args, 1);
-                String res = commands.listPackagesWithUID(opts.packageType);
-                List<App> apps = Packages.parseWithUID(res);
+                List<App> apps = commands.getPackageIndex().apps(opts.packageType);
                 apps.forEach(System.out::println);
                 System.out.println("Count: " + apps.size());
             } break;
@@ -468,16 +483,23 @@ public class CLI {
                 "/system/system_ext/priv-app/");
 
         List<String> removableLocations = new ArrayList<>();
-        for (String appLocation : SYSTEM_APP_LOCATIONS) {
-            String fullAppLocation = systemRoot + appLocation;
-            List<String> appDirs = commands.listItems(fullAppLocation).stream()
-                    .filter(GOOGLE_APP_DIRECTORIES::contains)
-                    .map(dir -> fullAppLocation + dir)
-                    .collect(Collectors.toList());
-            removableLocations.addAll(appDirs);
+        List<String> fullAppLocations = SYSTEM_APP_LOCATIONS.stream()
+                .map(appLocation -> systemRoot + appLocation)
+                .collect(Collectors.toList());
+        // listed along with the app locations so the check below is answered from the listing
+        String permissionsDir = systemRoot + "/system/product/etc/permissions/";
+        List<String> listedDirs = new ArrayList<>(fullAppLocations);
+        listedDirs.add(permissionsDir);
+        Map<String, List<DirEntry>> listings = commands.listDirectories(listedDirs);
+        for (String fullAppLocation : fullAppLocations) {
+            for (DirEntry entry : listings.get(fullAppLocation)) {
+                if (GOOGLE_APP_DIRECTORIES.contains(entry.name)) {
+                    removableLocations.add(fullAppLocation + entry.name);
+                }
+            }
         }
 
-        String splitPermsXml = systemRoot + "/system/product/etc/permissions/split-permissions-google.xml";
+        String splitPermsXml = permissionsDir + "split-permissions-google.xml";
         if (commands.exists(splitPermsXml)) {
             removableLocations.add(splitPermsXml);
         }
@@ -510,7 +532,6 @@ public class CLI {
     }
 
     private void importDataByName(String pkgName, String importDir) {
-        commands.ensurePrivileged();
         File importFrom = new File(importDir);
         if (!importFrom.exists()) {
             errorExit("There's no directory of name " + importDir);
@@ -523,9 +544,8 @@ public class CLI {
             return;
         }
 
-        String packagesResult = commands.listPackagesBy(PackageType.ALL);
-        Set<String> installed = Packages.parseToSet(packagesResult);
-        if (!installed.contains(pkgName)) {
+        DeviceContext context = new DeviceContext.Preflight(commands).privilege().packages().run();
+        if (!context.packages.contains(pkgName)) {
             errorExit("The app is not installed, install it first.");
             return;
         }
@@ -534,16 +554,13 @@ public class CLI {
         System.out.println(pushResult);
         commands.extractTar(phoneTar, DATA_USER_0);
         commands.rm(phoneTar);
-        String packagesWithUID = commands.listPackagesWithUID(PackageType.ALL);
-        List<App> apps = Packages.parseWithUID(packagesWithUID);
-        App targetApp = apps.stream().filter(app -> app.name.equals(pkgName)).findFirst().get();
-        System.out.println("Target app: " + targetApp);
+        PackageIndex.Entry targetApp = commands.getPackageIndex().get(pkgName);
+        System.out.println("Target app: " + targetApp.name + ":" + targetApp.uid);
         commands.changeOwnership(targetApp.uid, targetApp.uid, DATA_USER_0 + pkgName, true);
     }
 
     private void importAppsData(String outputDir) {
-        String packagesWithUID = commands.listPackagesWithUID(PackageType.ALL);
-        List<App> apps = Packages.parseWithUID(packagesWithUID);
+        List<App> apps = commands.listApps(PackageType.ALL);
         errorExit("Unimplemented");
     }
 
@@ -567,47 +584,49 @@ public class CLI {
     private void exportAppsData(PackageType type, String outputDir) {
         commands.ensurePrivileged();
         ensureDirectory(outputDir);
-        String packagesRes = commands.listPackagesBy(type);
-        List<String> packages = Packages.parseToList(packagesRes);
+        List<String> packages = commands.listPackageList(type);
         System.out.println("Backing up data from " + packages.size() + " packages");
-        boolean tarredAny = false;
+        // every package's data directory is checked in one go
+        List<String> phoneDataDirs = new ArrayList<>(packages.size());
         for (String pkgName : packages) {
+            phoneDataDirs.add(DATA_USER_0 + pkgName);
+        }
+        Map<String, Boolean> present = commands.exists(phoneDataDirs);
+        // each package gets its own tar on the phone so packages can be exported in parallel.
+        // Only a few at a time, every package in progress takes up its data's size in the phone's shared storage
+        commands.getEngine().forEachParallel(packages, ExecutionEngine.MAX_IN_FLIGHT_PER_DEVICE, pkgName -> {
             String phoneDataDir = DATA_USER_0 + pkgName;
-            if (!commands.exists(phoneDataDir)) {
+            if (!present.get(phoneDataDir)) {
                 System.err.println(phoneDataDir + " does not exist, skipping");
-                continue;
+                return;
             }
 
-            String appDataTar = STORAGE_EMULATED_0 + EXPORT_TAR;
-            commands.tar(appDataTar, DATA_USER_0, pkgName);
-            tarredAny = true;
-            String pullOutput = commands.pull(appDataTar, outputDir + "/" + pkgName + ".tar");
-            System.out.println(pullOutput);
-        }
-
-        if (tarredAny) {
-            String rmResult = commands.rm(STORAGE_EMULATED_0 + EXPORT_TAR);
-            System.out.println(rmResult);
-        }
+            String appDataTar = STORAGE_EMULATED_0 + pkgName + "-" + EXPORT_TAR;
+            try {
+                commands.tar(appDataTar, DATA_USER_0, pkgName);
+                String pullOutput = commands.pull(appDataTar, outputDir + "/" + pkgName + ".tar");
+                System.out.println(pullOutput);
+            } finally {
+                commands.rm(appDataTar);
+            }
+        });
     }
 
     private void exportAppsPermissions(PackageType type, String outputDir) {
         ensureDirectory(outputDir);
-        String packagesRes = commands.listPackagesBy(type);
-        List<String> packages = Packages.parseToList(packagesRes);
+        List<String> packages = commands.listPackageList(type);
         System.out.println("Backing up permissions from " + packages.size() + " packages");
 
         StringBuilder output = new StringBuilder(1024);
-        int exported = 0;
-        for (int i = 0; i < packages.size(); i++) {
-            String pkgName = packages.get(i);
-            List<GrantablePermission> permissions = commands.getGrantablePermissions(pkgName);
+        int[] counters = {0, 0}; // visited, exported
+        forEachPrefetched(packages, ExecutionEngine.MAX_IN_FLIGHT_PER_DEVICE, commands::getGrantablePermissionsAsync, (pkgName, permissions) -> {
+            int i = counters[0]++;
             if (permissions == null) {
                 System.err.println("Package not found or an error occurred for " + pkgName);
-                continue;
+                return;
             }
             if (permissions.size() == 0) {
-                continue;
+                return;
             }
             output.append(pkgName).append("\n");
             for (GrantablePermission perm : permissions) {
@@ -615,8 +634,9 @@ public class CLI {
             }
             output.append("\n");
             System.out.println("[" + i + "/" + packages.size() + "] " + pkgName);
-            exported++;
-        }
+            counters[1]++;
+        });
+        int exported = counters[1];
         long unixSec = System.currentTimeMillis() / 1000;
         Path outputPath = Paths.get(outputDir).resolve("perms-" + LocalDate.now() + "-" + unixSec + ".txt");
         try {
@@ -639,8 +659,7 @@ public class CLI {
             errorExit("Nothing to export");
             return;
         }
-        String packagesResult = commands.listPackagesBy(PackageType.ALL);
-        Set<String> installed = Packages.parseToSet(packagesResult);
+        Set<String> installed = commands.listPackageSet(PackageType.ALL);
 
         boolean expectPkg = true;
         String currentPkg = null;
@@ -679,6 +698,35 @@ public class CLI {
 
     }
 
+    // Keeps up to `ahead` queries in flight while their results are consumed in order.
+    // A query that failed or timed out is consumed as null. If the consumer throws (or exits),
+    // the queries not consumed yet are cancelled, which returns their permits and stops their commands
+    private static <T> void forEachPrefetched(List<String> keys, int ahead,
+                                              Function<String, CompletableFuture<T>> query,
+                                              BiConsumer<String, T> consumer) {
+        Deque<CompletableFuture<T>> inFlight = new ArrayDeque<>(ahead);
+        int next = 0;
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                for (; next < keys.size() && inFlight.size() < ahead; next++) {
+                    inFlight.add(query.apply(keys.get(next)));
+                }
+                T result;
+                try {
+                    result = inFlight.poll().join();
+                } catch (CompletionException | CancellationException e) {
+                    System.err.println(e.getCause() == null ? e : e.getCause());
+                    result = null;
+                }
+                consumer.accept(keys.get(i), result);
+            }
+        } finally {
+            for (CompletableFuture<T> pending : inFlight) {
+                pending.cancel(true);
+            }
+        }
+    }
+
     private void ensureDirectory(String dirPath) {
         File dir = new File(dirPath);
         if (!dir.exists() && !dir.mkdirs()) {
@@ -698,11 +746,19 @@ public class CLI {
             System.out.println("Warning: Skipping device stage");
             return;
         }
+        DeviceTracker tracker = commands.getDeviceTracker();
+        if (tracker != null) {
+            awaitTrackedDevice(tracker);
+            return;
+        }
         List<Device> devices = commands.listAdbDevices();
         long connected = devices.stream()
                 .filter(device -> device.status.equals("device") || device.status.equals("recovery"))
                 .count();
         System.out.println(connected + (connected == 1 ? " connected device" : " connected devices"));
+        if (devices.size() == 1) {
+            commands.setSerial(devices.get(0).serial);
+        }
 
         if (devices.isEmpty()) {
             System.out.println("No ADB devices detected. Is 'USB debugging' enabled? Press enter to refresh");
@@ -723,12 +779,43 @@ public class CLI {
 
     }
 
+    // Waits for the server to report a usable device instead of asking to press enter
+    private void awaitTrackedDevice(DeviceTracker tracker) {
+        boolean announcedEmpty = false, announcedUnauthorized = false;
+        Map<String, String> states = tracker.getStates();
+        while (true) {
+            long connected = states.values().stream()
+                    .filter(state -> state.equals("device") || state.equals("recovery"))
+                    .count();
+            if (states.size() > 1) {
+                System.out.println(connected + " connected devices");
+                System.err.println("Error: more than one device/emulator");
+                return;
+            }
+            if (connected == 1) {
+                System.out.println("1 connected device");
+                commands.setSerial(states.keySet().iterator().next());
+                return;
+            }
+            if (!announcedEmpty && states.isEmpty()) {
+                System.out.println("No ADB devices detected. Is 'USB debugging' enabled? Waiting for a device...");
+                announcedEmpty = true;
+            } else if (!announcedUnauthorized && states.containsValue("unauthorized")) {
+                announcedUnauthorized = true;
+                System.out.println("Device is unauthorized. Check for a confirmation dialog on your device.\n" +
+                        "If one doesn't appear. Try replugging your device.");
+            }
+            // offline, connecting, authorizing etc. settle without any input
+            states = tracker.awaitChange(states, Long.MAX_VALUE);
+        }
+    }
+
     private void awaitFastbootDevice() {
         if (SKIP_DEVICE_STAGE) {
             System.out.println("Warning: Skipping fastboot device stage");
             return;
         }
-        List<Device> devices = commands.listFastbootDevices();
+        List<Device> devices = commands.awaitFastbootDevices(FASTBOOT_WAIT_MS);
         long connected = devices.stream()
                 .filter(device -> device.status.equals("fastboot"))
                 .count();
@@ -753,7 +840,7 @@ public class CLI {
             return;
         }
 
-        Set<String> allPackages = Packages.parseToSet(commands.listPackagesBy(PackageType.ALL));
+        Set<String> allPackages = commands.getPackageIndex().names(PackageType.ALL);
         File[] apkDirs = name == null ?
                 export.listFiles(f -> f.isDirectory() && !allPackages.contains(f.getName())) :
                 export.listFiles(f -> f.isDirectory() && f.getName().equals(name));
@@ -794,15 +881,12 @@ public class CLI {
             return;
         }
 
-        String output = commands.getPackagePath(pkgName);
-        if (output.isEmpty()) {
+        PackageIndex.Entry entry = commands.getPackageIndex().get(pkgName);
+        if (entry == null) {
             errorExit(pkgName + " doesn't exist?");
             return;
         }
-        List<String> apks = Commands.splitOutputLines(output).stream()
-                .filter(path -> path.length() > 8)
-                .map(path -> path.substring(8)) // trim package: prefix
-                .collect(Collectors.toList());
+        List<String> apks = entry.apks;
         if (apks.isEmpty()) {
             errorExit("Nothing to export.");
             return;
@@ -823,17 +907,12 @@ public class CLI {
     }
 
     private void export(PackageType type, String outputDir) {
-        String output = commands.listPackagesBy(type);
-        if (output.startsWith("package")) {
-            packages = Packages.parseToSet(output);
-        } else if (output.startsWith("java.lang.UnsatisfiedLinkError")) {
+        PackageIndex index = commands.getPackageIndex();
+        if (index.isEmpty()) {
             errorExit("'pm list packages' command failed - can't export");
             return;
-        } else {
-            errorExit(output);
-            return;
         }
-        int pulled = 0, errors = 0;
+        packages = index.names(type);
         File export = new File(outputDir);
         if (!export.exists() && !export.mkdirs()) {
             errorExit("Unable to create export directory");
@@ -842,15 +921,14 @@ public class CLI {
         System.out.println(packages);
         System.out.println("Backing up " + packages.size() + " packages");
         Utilities.askToProceedOrExit(scanner);
-        int counter = 1;
+        AtomicInteger counter = new AtomicInteger(1), pulled = new AtomicInteger(), errors = new AtomicInteger();
         long st = System.currentTimeMillis();
-        for (String pkg : packages) {
-            output = commands.getPackagePath(pkg);
-            if (output.isEmpty()) {
+        commands.getEngine().forEachParallel(packages, pkg -> {
+            List<String> apks = index.get(pkg).apks;
+            if (apks.isEmpty()) {
                 System.err.println(pkg + " is incorrectly displayed by the package manager as an existing package");
-                continue;
+                return;
             }
-            List<String> apks = Packages.parseToList(output);
 
             File pkgExport = Paths.get(outputDir).resolve(pkg).toFile();
             if (!pkgExport.exists() && !pkgExport.mkdirs()) {
@@ -861,15 +939,14 @@ public class CLI {
                 String pullOutput = commands.pullAPK(apk, pkgExport.toString());
                 System.out.println(pullOutput);
                 if (pullOutput.startsWith("adb: error:")) {
-                    errors++;
+                    errors.incrementAndGet();
                 } else {
-                    pulled++;
+                    pulled.incrementAndGet();
                 }
             }
             long now = System.currentTimeMillis();
-            System.out.println("Packages exported: " + counter + " | Pulls: " + pulled + " | Errors: " + errors + " | " + (now - st) + " ms elapsed");
-            counter++;
-        }
+            System.out.println("Packages exported: " + counter.getAndIncrement() + " | Pulls: " + pulled + " | Errors: " + errors + " | " + (now - st) + " ms elapsed");
+        });
         long end = System.currentTimeMillis();
         System.out.println("Time taken: " + (end - st) + " ms");
     }
@@ -891,6 +968,8 @@ public class CLI {
     private void debloatUndo(String path) {
         String content = Utilities.readToString(path);
         List<String> packages = Utilities.readAllLines(content);
+        // dumps are in removal order, required packages come back before the packages using them
+        Collections.reverse(packages);
 
         int success = 0, fail = 0;
         for (String pkg : packages) {
@@ -913,35 +992,91 @@ public class CLI {
         System.out.println("Results[success:" + success + ',' + " fail:" + fail + ']');
     }
 
-    private void debloat(boolean full) {
-        String output = commands.listPackagesBy(PackageType.ALL);
-        optimizePackagesAndPrompt(output, full);
-
-        boolean usePrefix = false;
-        System.out.println("Proceed? (y/n)");
-        String prefix = scanner.nextLine();
-        if (!prefix.startsWith("y")) {
-            if (!prefix.startsWith("n")) {
-                Utilities.okExit("Exiting");
+    // resumePath is the journal of an interrupted run or null
+    private void debloat(boolean full, String resumePath) {
+        String mode = full ? "debloat-full" : "debloat";
+        String serial = commands.getSerial() == null ? "" : commands.getSerial();
+        PackageIndex index = commands.getPackageIndex();
+        DebloatJournal.Replay replay = null;
+        List<String> targets = new ArrayList<>();
+        Path journalPath;
+        if (resumePath != null) {
+            journalPath = Paths.get(resumePath);
+            replay = DebloatJournal.load(journalPath);
+            if (replay == null) {
+                errorExit("No debloat run recorded in " + resumePath);
+                return;
+            }
+            if (!replay.mode.equals(mode)) {
+                errorExit("The journal was recorded by " + replay.mode + ", resume it with: " + replay.mode + " --resume " + resumePath);
             }
-            System.out.println("Uninstall only those starting with:");
-            prefix = scanner.nextLine();
-            if (prefix.isEmpty()) {
-                Utilities.okExit("Exiting");
+            if (!replay.serial.isEmpty() && !serial.isEmpty() && !replay.serial.equals(serial)) {
+                errorExit("The journal was recorded on device " + replay.serial + ", not " + serial);
             }
-            usePrefix = true;
+            // packages removed before the run was interrupted aren't installed anymore
+            Set<String> installed = index.isEmpty() ? null : index.names(PackageType.ALL);
+            for (String pkgName : replay.remaining()) {
+                if (installed == null || installed.contains(pkgName)) {
+                    targets.add(pkgName);
+                }
+            }
+            System.out.println(replay.uninstalled.size() + " packages already uninstalled, " + targets.size() + " left to uninstall:");
+            System.out.println(targets);
+            Utilities.askToProceedOrExit(scanner);
+        } else {
+            optimizePackagesAndPrompt(index.isEmpty() ? null : index.names(PackageType.ALL), full);
+
+            boolean usePrefix = false;
+            System.out.println("Proceed? (y/n)");
+            String prefix = scanner.nextLine();
+            if (!prefix.startsWith("y")) {
+                if (!prefix.startsWith("n")) {
+                    Utilities.okExit("Exiting");
+                }
+                System.out.println("Uninstall only those starting with:");
+                prefix = scanner.nextLine();
+                if (prefix.isEmpty()) {
+                    Utilities.okExit("Exiting");
+                }
+                usePrefix = true;
+            }
+
+            for (String currentPackage : bloatedPackages) {
+                if (usePrefix && !currentPackage.startsWith(prefix)) {
+                    continue;
+                }
+                targets.add(currentPackage);
+            }
+            long unixSec = System.currentTimeMillis() / 1000;
+            journalPath = Paths.get("debloat-" + LocalDate.now() + "-" + unixSec + DebloatJournal.EXTENSION);
         }
 
         List<String> uninstalled = new ArrayList<>();
+        if (replay != null) {
+            uninstalled.addAll(replay.uninstalled);
+        }
         long start = System.currentTimeMillis();
         int fail = 0;
 
-        for (String currentPackage : bloatedPackages) {
-            if (usePrefix && !currentPackage.startsWith(prefix)) {
-                continue;
-            }
-
-            output = full ? commands.uninstallPackagePerUser(currentPackage) : commands.uninstallPackagePerUserKeepData(currentPackage);
+        Map<String, String> results;
+        try (DebloatJournal journal = DebloatJournal.open(journalPath)) {
+            journal.begin(serial, mode);
+            journal.plan(targets);
+            System.out.println("Recording to " + journalPath + ", if interrupted continue with: " + mode + " --resume " + journalPath);
+            results = commands.uninstallPackagesBatch(targets, !full, (pkgName, output) -> {
+                try {
+                    journal.result(pkgName, output);
+                } catch (IOException e) {
+                    System.err.println("Failed to write journal: " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            errorExit("Failed to write journal: " + e.getMessage());
+            return;
+        }
+        for (Map.Entry<String, String> result : results.entrySet()) {
+            String currentPackage = result.getKey();
+            String output = result.getValue();
             if (output.startsWith("Success")) {
                 System.out.println("Deleted: " + currentPackage);
                 uninstalled.add(currentPackage);
@@ -976,8 +1111,9 @@ public class CLI {
     private void debloatCust() {
         commands.ensurePrivileged();
         final String CUST_APP = "/cust/app", CUSTPACK_APP = "/custpack/app";
-        long custAppSize = commands.getDirectorySize(CUST_APP);
-        long custpackAppSize = commands.getDirectorySize(CUSTPACK_APP);
+        Map<String, Long> sizes = commands.getDirectorySizes(Arrays.asList(CUST_APP, CUSTPACK_APP));
+        long custAppSize = sizes.get(CUST_APP);
+        long custpackAppSize = sizes.get(CUSTPACK_APP);
         if (custAppSize == -1 && custpackAppSize == -1) {
             System.out.println("No cust directories found");
             return;
@@ -993,14 +1129,13 @@ public class CLI {
             custSize = custAppSize;
         }
         lsDir = custDir;
-        if (custAppSize > 0) {
-            String custCustomizedDir = custDir + "/customized";
-            if(commands.exists(custCustomizedDir)) {
-                lsDir = custCustomizedDir;
-            }
+        // the listing of custDir answers whether there's a customized dir
+        List<String> appList = commands.listItems(custDir);
+        if (custAppSize > 0 && appList.contains("customized")) {
+            lsDir = custDir + "/customized";
+            appList = commands.listItems(lsDir);
         }
         System.out.println(custDir + " = " + Utilities.formatBtoMB(custSize));
-        List<String> appList = commands.listItems(lsDir);
         System.out.println(appList);
         System.out.println(custDir + " will be removed");
         Utilities.askToProceedOrExit(scanner);
@@ -1010,37 +1145,47 @@ public class CLI {
         commands.remountReadOnly("/cust");
     }
 
-    private void optimizePackagesAndPrompt(String output, boolean full) {
+    // installed is null if the package manager couldn't list them
+    private void optimizePackagesAndPrompt(Set<String> installed, boolean full) {
         boolean errorFallback = false;
-        if (output.startsWith("package")) {
-            packages = Packages.parseToSet(output);
+        if (installed != null) {
+            packages = installed;
             System.out.println("Found " + packages.size() + " packages installed on device.");
             // retain these that are installed
             bloatedPackages.retainAll(packages);
-        } else if (output.startsWith("java.lang.UnsatisfiedLinkError")) {
-            errorFallback = true;
-            System.out.println("'pm list packages' command failed");
         } else {
             errorFallback = true;
-            System.err.println(output);
+            System.out.println("'pm list packages' command failed");
         }
+        // dependents go before what they require so no uninstall fails on a package that's still there
+        bloatedPackages = catalog.removalOrder(bloatedPackages);
         if (errorFallback) {
             System.out.println("Attempt to blind-uninstall " + bloatedPackages.size() + " packages?");
         } else {
             if (bloatedPackages.isEmpty()) {
                 System.out.println("No bloated packages found on the device. Exiting ..");
                 printRestoreCommandInfo();
-                System.exit(0);
+                Daemon.exit(0);
             }
             System.out.println(bloatedPackages);
+            List<String> risky = new ArrayList<>();
+            for (String pkgName : bloatedPackages) {
+                String risk = catalog.get(pkgName).risk;
+                if (!risk.equals(BloatCatalog.LOW_RISK)) {
+                    risky.add(pkgName + " (" + risk + ")");
+                }
+            }
+            if (!risky.isEmpty()) {
+                System.out.println("Removing these may break device features: " + risky);
+            }
             System.out.println("Uninstall " + (full ? "fully " : "") + bloatedPackages.size() + " packages?");
         }
     }
 
     public String installAsSystemApp(String apkPath, String appDir) {
-        commands.ensurePrivileged();
         String partition = "/";
-        long freeSpace = commands.getAvailableSpaceInBytes(partition);
+        DeviceContext context = new DeviceContext.Preflight(commands).privilege().freeSpace(partition).run();
+        long freeSpace = context.freeSpace;
         if (freeSpace != -1) {
             Path path = Paths.get(apkPath);
             long apkSize = -1;
@@ -1103,16 +1248,18 @@ public class CLI {
             errorExit("Provide an installation directory name");
         }
         String systemRoot = "/system_root";
-        List<MountEntry> mounts = commands.getSystemProcMounts();
-        if (mounts.stream().noneMatch(m -> m.target.equals(systemRoot))) {
+        // the free space probe is only good for what's mounted there already
+        DeviceContext context = new DeviceContext.Preflight(commands).mounts().freeSpace(systemRoot).run();
+        long freeSpace = context.freeSpace;
+        if (context.mounts.stream().noneMatch(m -> m.target.equals(systemRoot))) {
             System.out.println(systemRoot  + " isn't mounted, mounting");
             String mountRes = commands.mount("/dev/block/bootdevice/by-name/system", systemRoot);
             if (mountRes.startsWith("mount: ")) {
                 return mountRes;
             }
+            freeSpace = commands.getAvailableSpaceInBytes(systemRoot);
         }
 
-        long freeSpace = commands.getAvailableSpaceInBytes(systemRoot);
         if (freeSpace != -1) {
             Path path = Paths.get(apkPath);
             long apkSize = -1;
@@ -1155,9 +1302,9 @@ public class CLI {
     }
 
     private String systemizeApp(String pkgName, String appDir) {
-        commands.ensurePrivileged();
+        DeviceContext context = new DeviceContext.Preflight(commands).privilege().packagePath(pkgName).run();
         String partition = "/";
-        String output = commands.getPackagePath(pkgName);
+        String output = context.packagePath;
         if (output.isEmpty()) {
             errorExit(pkgName + " doesn't exist!");
         }
@@ -1241,9 +1388,14 @@ public class CLI {
     public static void displayHelp() {
         System.out.println("run.sh/run.bat <action>");
         System.out.println();
+        System.out.println("Daemon (keeps adb, device and caches warm, later runs from the same directory go through it):");
+        System.out.println("  daemon [port]        Serves actions on a loopback port until stopped");
+        System.out.println("  stop-daemon          Stops the daemon");
+        System.out.println();
         System.out.println("Debloat (packages.txt) (will prompt)");
         System.out.println("  debloat              Uninstalls packages listed in packages.txt");
         System.out.println("  debloat-full         \"debloat\" but also deletes package data");
+        System.out.println("  debloat --resume <journal>  Continues an interrupted debloat(-full) run");
         System.out.println("  debloat-undo <file>  \"debloat\" but reversed");
         System.out.println("  debloat-cust         [ROOT] remove cust bloatware");
         System.out.println();
@@ -1295,6 +1447,6 @@ public class CLI {
 
     public static void errorExit(String message) {
         System.err.println(message);
-        System.exit(1);
+        Daemon.exit(1);
     }
 }
@@ -0,0 +1,76 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+// Results of side-effect-free commands for the rest of the run, per device.
+// Every result belongs to a scope (what it depends on), commands with side effects invalidate the scopes they touch.
+// Identical requests arriving while the first one still runs wait for its result instead of running again
+class CommandCache {
+    enum Scope {
+        PACKAGES, // package manager state
+        FILES,    // file system contents, mounts and free space
+        PROPS     // system properties
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final Scope scope;
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        Entry(Scope scope) {
+            this.scope = scope;
+        }
+    }
+
+    // Returns the cached result of the query or computes it. A result failing the keep test (e.g. a timed out command)
+    // is handed to the waiting callers but not cached
+    @SuppressWarnings("unchecked")
+    public <T> T get(String device, Scope scope, String kind, String[] query, Supplier<T> compute, Predicate<T> keep) {
+        String key = keyOf(device) + kind + '\t' + Arrays.toString(query);
+        Entry entry = new Entry(scope);
+        Entry existing = entries.putIfAbsent(key, entry);
+        if (existing != null) {
+            try {
+                return (T) existing.result.join();
+            } catch (CompletionException e) {
+                // the request ran into an exception, this one runs on its own
+                return compute.get();
+            }
+        }
+        T result;
+        try {
+            result = compute.get();
+        } catch (RuntimeException e) {
+            entries.remove(key, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+        if (!keep.test(result)) {
+            entries.remove(key, entry);
+        }
+        entry.result.complete(result);
+        return result;
+    }
+
+    // Results already being computed are still handed to their waiters, later requests run again
+    public void invalidate(String device, Iterable<Scope> scopes) {
+        String prefix = keyOf(device);
+        for (Scope scope : scopes) {
+            entries.entrySet().removeIf(e -> e.getValue().scope == scope && e.getKey().startsWith(prefix));
+        }
+    }
+
+    public void invalidateAll(String device) {
+        String prefix = keyOf(device);
+        entries.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    private static String keyOf(String device) {
+        return (device == null ? "" : device) + '\t';
+    }
+}
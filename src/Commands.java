@@ -1,6 +1,23 @@
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 public class Commands {
@@ -11,17 +28,87 @@ public class Commands {
     public static final String DISABLE_APP_COMMAND_1 = "pm disable PACKAGE";
     public static final String DISABLE_APP_COMMAND_2 = "pm disable-user PACKAGE";
     public static final String FULL_BACKUP_COMMAND = "adb backup -apk -obb -shared -all -system -f backup.ab";
-
-    PrivilegeType privilege = null;
-    private final ProcessBuilder procBuilder = new ProcessBuilder();
+    private static final String BATCH_RESULT_MARKER = "__DEBLOATER_RESULT__ ";
+    // Older adbd implementations reject shell commands longer than 4 KB
+    private static final int MAX_SCRIPT_LENGTH = 3500;
+    // Transfers and installs scale with file size, they only need a deadline to not hang forever
+    private static final long TRANSFER_TIMEOUT_MS = 10 * 60_000;
+    private static final long STREAM_CLOSE_GRACE_MS = 100;
+    // Captured output past this goes to a temp file
+    private static final int SPILL_THRESHOLD = 4 * 1024 * 1024;
+    private static final String TIMEOUTS_FILE = "timeouts.txt";
+    private static final String DEVICE_PROPS_FILE = "device-props.txt";
+    private static final String PACKAGE_INDEX_FILE = "package-index.txt";
+    // Up to this many new or updated packages get a 'dumpsys package' each, more share one dump of all packages
+    private static final int MAX_SINGLE_PACKAGE_DUMPS = 8;
+    private static final long TRACKER_FIRST_LIST_TIMEOUT_MS = 2000;
+    private static final long REBOOT_DISCONNECT_TIMEOUT_MS = 15_000;
+    private static final long FASTBOOT_POLL_INTERVAL_MS = 500;
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "command-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Talk to the adb server over its socket instead of starting an adb process per call
+    private static final boolean USE_NATIVE_CLIENT = true;
+    private static final int MAX_NATIVE_FAILURES = 3;
+    // Route 'adb shell' commands through one long-lived shell instead of a new adb process per call
+    private static final boolean USE_SHELL_SESSION = true;
+    private static final int MAX_SESSION_FAILURES = 3;
+
+    volatile PrivilegeType privilege = null;
+    private final ExecutionEngine engine = new ExecutionEngine();
+    // Device the permits and learned timeouts are counted against, null until a specific device is targeted
+    private volatile String serial = null;
+    private final AdaptiveTimeouts timeouts = new AdaptiveTimeouts();
+    private String[] adbTerms;
+    private final AdbClient adbClient = AdbClient.fromEnv();
+    // Consecutive connection failures, the server may not be running yet, the next adb process starts it
+    private final AtomicInteger nativeFailures = new AtomicInteger();
+    private DeviceTracker tracker;
+    // Aborts for every command in flight, run when the target device disconnects
+    private final Set<Runnable> inFlight = ConcurrentHashMap.newKeySet();
+    // Guards the session, a thread that finds it busy runs its command in a separate process instead
+    private final ReentrantLock sessionLock = new ReentrantLock();
+    private volatile ShellSession session;
+    private int sessionFailures = 0;
+    private final Object helperLock = new Object();
+    private DeviceHelper helper; // guarded by helperLock
+    private boolean helperMissing; // the script couldn't be loaded, guarded by helperLock
+    private final CommandCache cache = new CommandCache();
+    private final Object propsLock = new Object();
+    private volatile DeviceProps deviceProps; // of propsSerial, dropped when the device disconnects
+    private volatile String propsSerial;
+    private final Object indexLock = new Object();
+    private PackageIndex packageIndex; // of indexSerial, guarded by indexLock
+    private String indexSerial;
+    // Side-effect-free templates and what their results depend on
+    private final Map<CommandTemplate, CommandCache.Scope> cachedScopes = new HashMap<>();
+    // Templates with side effects and the cached results they make stale
+    private final Map<CommandTemplate, Set<CommandCache.Scope>> staleScopes = new ConcurrentHashMap<>();
+    // File metadata of serial, changes through these templates only drop the paths they were given
+    private final FileMetadata files = new FileMetadata();
+    private final Set<CommandTemplate> pathScoped = new HashSet<>();
+    private String helperSerial; // device the helper was verified on this session, guarded by helperLock
+    // Depends on the device's Android version, resolved on first use since most runs never install.
+    // Dropped when the serial changes
+    private volatile CommandTemplate installTemplate;
     private CommandTemplate PM_UNINSTALL_PER_USER, PM_UNINSTALL_PER_USER_KEEP, DISABLE_USER,
-            LIST_PACKAGES_BY_TYPE, LIST_PACKAGES_WITH_UID, PM_CHANGE_PERM,
+            LIST_PACKAGES_BY_TYPE, LIST_PACKAGES_WITH_UID, LIST_PACKAGES_DETAILED, PM_CHANGE_PERM,
             TAR, CHOWN, CHMOD, EXTRACT_TAR, RESTORECON, RM, RM_RECURSE_FORCE, MK_DIR, PM_PATH, ADB_DEVICES,
-            ADB_PULL, ADB_PUSH, ADB_INSTALL, ADB_INSTALL_MULTIPLE, ADB_ROOT, ADB_UNROOT,
+            ADB_PULL, ADB_PUSH, ADB_INSTALL_MULTIPLE, ADB_ROOT, ADB_UNROOT,
             INSTALL_BACK, INSTALL_CREATE, INSTALL_WRITE, INSTALL_COMMIT, EXISTS,
             REMOUNT_READ_ONLY, REMOUNT_READ_WRITE, MOUNT, CHECK_SU, MOVE, COPY, GET_SELINUX_MODE,
-            GET_PROP, SET_PROP, DIRECTORY_SIZE, LS, DISK_FREE, GET_BUILD, DMCTL, TUNE2FS, REBOOT,
-            SHELL_LOGCAT, GET_SYSTEM_PROC_MOUNTS, DD, FLASH, FASTBOOT_DEVICES, FASTBOOT_REBOOT, DUMPSYS;
+            GET_PROP, GET_ALL_PROPS, SET_PROP, SHELL_SCRIPT, DIRECTORY_SIZE, LS, DISK_FREE, DMCTL, TUNE2FS, REBOOT,
+            SHELL_LOGCAT, GET_SYSTEM_PROC_MOUNTS, DD, FLASH, FASTBOOT_DEVICES, FASTBOOT_REBOOT, DUMPSYS, HELPER;
+
+    private Commands() {
+        Path timeoutsPath = Utilities.pathNextToExecutable(TIMEOUTS_FILE);
+        timeouts.load(timeoutsPath);
+        // most exits go through System.exit so a hook is the only reliable place to persist them
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> timeouts.save(timeoutsPath)));
+    }
 
     public static Commands fromDir(String toolsDir) {
         //we must include the entire path to avoid: CreateProcess error=2 The system cannot find the file specified
@@ -54,22 +141,42 @@ public class Commands {
     }
 
     public void ensurePrivileged() {
-        if (privilege != null) {
+        // a repeat run on the same build only confirms the route that worked last time
+        if (confirmRecordedPrivilege()) {
             return;
         }
-        String rootResult = root();
-        PrivilegeType privilege = PrivilegeType.ADB_ROOT;
-        if (!Commands.hasRoot(rootResult)) {
-            System.out.println("No adb root. Trying su, answer the request on your phone or grant Shell SU rights");
-            if (!checkSU()) {
-                Utilities.errExit("No su access.");
-            }
-            privilege = PrivilegeType.SU;
+        String target = serial;
+        PrivilegeType privilege = detectPrivilege();
+        String fingerprint = target == null ? null : getDeviceProps().getFingerprint();
+        if (fingerprint != null) {
+            PrivilegeRecord.save(target, fingerprint, privilege);
         }
         this.privilege = privilege;
+        // results seen without privileges may be missing what only root can see
+        cache.invalidateAll(target);
+        files.clear();
+    }
+
+    // Takes the privilege recorded for this device and build if a single 'id' confirms it still works.
+    // Never restarts adbd, so it can run next to other commands. Returns false if it takes ensurePrivileged
+    public boolean confirmRecordedPrivilege() {
+        if (privilege != null) {
+            return true;
+        }
+        String target = serial;
+        String fingerprint = target == null ? null : getDeviceProps().getFingerprint();
+        PrivilegeType recorded = fingerprint == null ? null : PrivilegeRecord.load(target, fingerprint);
+        if (recorded == null || !hasPrivilege(recorded)) {
+            return false;
+        }
+        privilege = recorded;
+        cache.invalidateAll(target);
+        files.clear();
+        return true;
     }
 
     private void setupAdbCommands(String... adbTerms) {
+        this.adbTerms = adbTerms;
         PM_UNINSTALL_PER_USER = new CommandTemplate(adbTerms, "shell", "pm", "uninstall", "--user 0", "");
         PM_UNINSTALL_PER_USER_KEEP = new CommandTemplate(adbTerms, "shell", "pm", "uninstall", "-k", "--user 0", "");
         DISABLE_USER = new CommandTemplate(adbTerms, "shell", "pm", "disable-user", "");
@@ -88,6 +195,7 @@ public class Commands {
         MK_DIR = new CommandTemplate(adbTerms, "shell", "mkdir", "-p", "");
         LIST_PACKAGES_BY_TYPE = new CommandTemplate(adbTerms, "shell", "pm", "list", "packages", "");
         LIST_PACKAGES_WITH_UID = new CommandTemplate(adbTerms, "shell", "pm", "list", "packages", "-U", "");
+        LIST_PACKAGES_DETAILED = new CommandTemplate(adbTerms, "shell", "pm", "list", "packages", "-f", "-i", "");
         INSTALL_CREATE = new CommandTemplate(adbTerms, "shell", "pm", "install-create", "-S", "");
         INSTALL_WRITE = new CommandTemplate(adbTerms, "shell", "pm", "install-write", "-S", "", "", "", "");
         INSTALL_COMMIT = new CommandTemplate(adbTerms, "shell", "pm", "install-commit", "");
@@ -104,10 +212,10 @@ public class Commands {
         GET_SELINUX_MODE = new CommandTemplate(adbTerms, "shell", "getenforce");
         GET_PROP = new CommandTemplate(adbTerms, "shell", "getprop", "");
         SET_PROP = new CommandTemplate(adbTerms, "shell", "setprop", "", "");
-        DIRECTORY_SIZE = new CommandTemplate(adbTerms, "shell", "du", "-sh", "");
+        DIRECTORY_SIZE = new CommandTemplate(adbTerms, "shell", "du", "-sk", "");
         LS = new CommandTemplate(adbTerms, "shell", "ls", "");
         DISK_FREE = new CommandTemplate(adbTerms, "shell", "df", "");
-        GET_BUILD = new CommandTemplate(adbTerms, "shell", "cat /system/build.prop | grep build.type");
+        GET_ALL_PROPS = new CommandTemplate(adbTerms, "shell", "getprop");
         DMCTL = new CommandTemplate(adbTerms, "shell", "dmctl");
         TUNE2FS = new CommandTemplate(adbTerms, "shell", "tune2fs", "-l", "");
         PM_CHANGE_PERM = new CommandTemplate(adbTerms, "shell", "pm", "", "");
@@ -116,7 +224,9 @@ public class Commands {
         GET_SYSTEM_PROC_MOUNTS = new CommandTemplate(adbTerms, "shell", "cat /proc/mounts | grep /system");
         DD = new CommandTemplate(adbTerms, "shell", "dd");
         DUMPSYS = new CommandTemplate(adbTerms, "shell", "dumpsys", "");
-        setupLateInitAdbCommands(adbTerms);
+        SHELL_SCRIPT = new CommandTemplate(adbTerms, "shell", "");
+        HELPER = new CommandTemplate(adbTerms, "shell", "sh", "", "");
+        setupCaching();
     }
 
     private void setupFastbootCommands(String... fastbootTerms) {
@@ -125,56 +235,705 @@ public class Commands {
         FASTBOOT_REBOOT = new CommandTemplate(fastbootTerms, "reboot");
     }
 
-    private void setupLateInitAdbCommands(String... adbTerms) {
-        int version = getAndroidVersion();
-        String bypass = "--bypass-low-target-sdk-block";
-        ADB_INSTALL = new CommandTemplate(adbTerms, "install", version >= 14 ? bypass : "");
+    private CommandTemplate adbInstall() {
+        CommandTemplate template = installTemplate;
+        if (template != null) {
+            return template;
+        }
+        synchronized (this) {
+            template = installTemplate;
+            if (template == null) {
+                int version = getAndroidVersion();
+                String bypass = "--bypass-low-target-sdk-block";
+                template = new CommandTemplate(adbTerms, "install", version >= 14 ? bypass : "");
+                staleScopes.put(template, EnumSet.of(CommandCache.Scope.PACKAGES, CommandCache.Scope.FILES));
+                installTemplate = template;
+            }
+            return template;
+        }
+    }
+
+    private void setupCaching() {
+        for (CommandTemplate template : new CommandTemplate[]{PM_PATH, LIST_PACKAGES_BY_TYPE, LIST_PACKAGES_WITH_UID,
+                LIST_PACKAGES_DETAILED}) {
+            cachedScopes.put(template, CommandCache.Scope.PACKAGES);
+        }
+        for (CommandTemplate template : new CommandTemplate[]{EXISTS, LS, DISK_FREE, DIRECTORY_SIZE}) {
+            cachedScopes.put(template, CommandCache.Scope.FILES);
+        }
+        cachedScopes.put(GET_PROP, CommandCache.Scope.PROPS);
+
+        // (un)installs also add and remove files, e.g. under /data/app and /data/data
+        Set<CommandCache.Scope> packages = EnumSet.of(CommandCache.Scope.PACKAGES, CommandCache.Scope.FILES);
+        for (CommandTemplate template : new CommandTemplate[]{PM_UNINSTALL_PER_USER, PM_UNINSTALL_PER_USER_KEEP, DISABLE_USER,
+                INSTALL_BACK, ADB_INSTALL_MULTIPLE, INSTALL_COMMIT}) {
+            staleScopes.put(template, packages);
+        }
+        Set<CommandCache.Scope> files = EnumSet.of(CommandCache.Scope.FILES);
+        for (CommandTemplate template : new CommandTemplate[]{TAR, EXTRACT_TAR, CHOWN, CHMOD, RESTORECON, RM, RM_RECURSE_FORCE,
+                MK_DIR, ADB_PUSH, MOVE, COPY, DD, MOUNT, REMOUNT_READ_ONLY, REMOUNT_READ_WRITE}) {
+            staleScopes.put(template, files);
+        }
+        pathScoped.addAll(Arrays.asList(TAR, EXTRACT_TAR, CHOWN, CHMOD, RM, RM_RECURSE_FORCE, MK_DIR, ADB_PUSH, MOVE, COPY, DD));
+        staleScopes.put(SET_PROP, EnumSet.of(CommandCache.Scope.PROPS));
+        // root changes what can be seen, scripts and reboots could change anything
+        Set<CommandCache.Scope> all = EnumSet.allOf(CommandCache.Scope.class);
+        for (CommandTemplate template : new CommandTemplate[]{ADB_ROOT, ADB_UNROOT, SHELL_SCRIPT, REBOOT}) {
+            staleScopes.put(template, all);
+        }
+    }
+
+    // Drops the cached results a command built from template may have changed
+    private void invalidateAfter(CommandTemplate template) {
+        Set<CommandCache.Scope> scopes = staleScopes.get(template);
+        if (scopes != null) {
+            cache.invalidate(serial, scopes);
+            if (scopes.contains(CommandCache.Scope.FILES) && !pathScoped.contains(template)) {
+                files.clear();
+            }
+        }
     }
 
     public String executeCommandTrim(String[] commands, int maxLen) {
-        procBuilder.command(commands);
-        procBuilder.redirectErrorStream(true);
+        String shellLine = toShellLine(commands);
+        if (shellLine != null) {
+            String output = executeNative(shellLine, 3000, maxLen);
+            if (output != null) {
+                return output;
+            }
+        }
+        return executeProcess(commands, 3000, maxLen);
+    }
+
+    // Runs a command built from template with a deadline learned from the template's past latencies
+    private String execute(CommandTemplate template, String[] command, long defaultTimeoutMs) {
+        return executeTransfer(template, "", command, defaultTimeoutMs, 0);
+    }
+
+    // shape tells apart uses of a template that take differently long, each learns its own deadline
+    private String execute(CommandTemplate template, String shape, String[] command, long defaultTimeoutMs) {
+        return executeTransfer(template, shape, command, defaultTimeoutMs, 0);
+    }
+
+    private String executeTransfer(CommandTemplate template, String[] command, long defaultTimeoutMs, long transferBytes) {
+        return executeTransfer(template, "", command, defaultTimeoutMs, transferBytes);
+    }
+
+    // Deadline also covers moving transferBytes at the slowest expected throughput.
+    // Output of side-effect-free templates comes from the cache when possible, timed out runs aren't cached
+    private String executeTransfer(CommandTemplate template, String shape, String[] command, long defaultTimeoutMs,
+                                   long transferBytes) {
+        CommandCache.Scope scope = cachedScopes.get(template);
+        if (scope == null) {
+            String output = executeTimed(template, shape, command, defaultTimeoutMs, transferBytes, new boolean[1]);
+            invalidateAfter(template);
+            return output;
+        }
+        boolean[] timedOut = {false};
+        return cache.get(serial, scope, "output", command,
+                () -> executeTimed(template, shape, command, defaultTimeoutMs, transferBytes, timedOut), output -> !timedOut[0]);
+    }
+
+    private String executeTimed(CommandTemplate template, String shape, String[] command, long defaultTimeoutMs,
+                                long transferBytes, boolean[] timedOut) {
+        shape = template.workloadShape(shape, command);
+        long deadline = timeouts.deadlineFor(serial, template, shape, 1, defaultTimeoutMs, transferBytes);
+        long start = System.currentTimeMillis();
+        String output = executeCommandWithTimeout(command, deadline);
+        long elapsed = System.currentTimeMillis() - start;
+        timeouts.record(serial, template, shape, 1, elapsed, deadline, transferBytes);
+        timedOut[0] = elapsed >= deadline;
+        return output;
+    }
+
+    private void executeLines(CommandTemplate template, String[] command, long defaultTimeoutMs, Consumer<String> onLine) {
+        executeLines(template, "", 1, command, defaultTimeoutMs, onLine);
+    }
+
+    // A command doing items queries (or a script of items commands) learns its deadline per item, see execute for shape.
+    // Cached output is replayed line by line. Returns false if the command was cut off by its deadline
+    private boolean executeLines(CommandTemplate template, String shape, int items, String[] command, long defaultTimeoutMs,
+                                 Consumer<String> onLine) {
+        CommandCache.Scope scope = cachedScopes.get(template);
+        if (scope == null) {
+            boolean[] timedOut = {false};
+            executeLinesTimed(template, shape, items, command, defaultTimeoutMs, onLine, timedOut);
+            invalidateAfter(template);
+            return !timedOut[0];
+        }
+        boolean[] timedOut = {false};
+        List<String> lines = cache.get(serial, scope, "lines", command, () -> {
+            List<String> collected = new ArrayList<>();
+            executeLinesTimed(template, shape, items, command, defaultTimeoutMs, collected::add, timedOut);
+            return collected;
+        }, collected -> !timedOut[0]);
+        lines.forEach(onLine);
+        return !timedOut[0];
+    }
+
+    private void executeLinesTimed(CommandTemplate template, String shape, int items, String[] command, long defaultTimeoutMs,
+                                   Consumer<String> onLine, boolean[] timedOut) {
+        shape = template.workloadShape(shape, command);
+        long deadline = timeouts.deadlineFor(serial, template, shape, items, defaultTimeoutMs, 0);
+        long start = System.currentTimeMillis();
+        executeCommandLines(command, deadline, onLine);
+        long elapsed = System.currentTimeMillis() - start;
+        timeouts.record(serial, template, shape, items, elapsed, deadline, 0);
+        timedOut[0] = elapsed >= deadline;
+    }
+
+    // Returns 0 if the size can't be determined
+    private static long localFileSize(String path) {
         try {
-            Process proc = procBuilder.start();
-            proc.waitFor(3, TimeUnit.SECONDS);
-            return Utilities.read(proc.getInputStream(), maxLen, false);
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
-            return "";
+            return Files.size(Paths.get(path));
+        } catch (IOException | InvalidPathException e) {
+            return 0;
+        }
+    }
+
+    public void setSerial(String serial) {
+        if (!Objects.equals(this.serial, serial)) {
+            privilege = null;
+            files.clear();
+            // another device may run another Android version
+            installTemplate = null;
         }
+        this.serial = serial;
     }
 
+    // Shell commands go over a native adb server connection if possible, then through the shell session,
+    // everything else and anything those couldn't run gets its own adb process
     public String executeCommandWithTimeout(String[] command, long timeoutMs) {
-        procBuilder.command(command);
+        String shellLine = toShellLine(command);
+        if (shellLine != null) {
+            String output = executeNative(shellLine, timeoutMs, Utilities.MAX_LEN);
+            if (output != null) {
+                return output;
+            }
+        }
+        String shellCommand = toSessionCommand(command);
+        if (shellCommand != null) {
+            String output = executeInSession(shellCommand, timeoutMs);
+            if (output != null) {
+                return output;
+            }
+        }
+        return executeProcess(command, timeoutMs, Utilities.MAX_LEN);
+    }
+
+    // Streams output lines (without terminators) to onLine as they arrive instead of materializing the output.
+    // onLine may be called from another thread but never after this method returns
+    public void executeCommandLines(String[] command, long timeoutMs, Consumer<String> onLine) {
+        // a drain outliving the deadline may still deliver lines after its stream was killed, those are dropped
+        LineGate gate = new LineGate(onLine);
+        try {
+            executeCommandLinesUngated(command, timeoutMs, gate);
+        } finally {
+            gate.close();
+        }
+    }
+
+    private void executeCommandLinesUngated(String[] command, long timeoutMs, Consumer<String> onLine) {
+        String shellLine = toShellLine(command);
+        if (shellLine != null && executeLinesNative(shellLine, timeoutMs, onLine)) {
+            return;
+        }
+        String shellCommand = toSessionCommand(command);
+        if (shellCommand != null && executeLinesInSession(shellCommand, timeoutMs, onLine)) {
+            return;
+        }
+        String device = serial;
+        if (!acquirePermit(device)) {
+            return;
+        }
+        try {
+            RunningCommand running = startProcess(command);
+            if (running != null) {
+                drainLines(running, timeoutMs, onLine);
+            }
+        } finally {
+            engine.release(device);
+        }
+    }
+
+    // Output is drained while the process runs, the call returns on EOF (or maxLen bytes).
+    // If the deadline passes first the process is destroyed and the output read so far is returned.
+    private String executeProcess(String[] command, long timeoutMs, int maxLen) {
+        String device = serial;
+        if (!acquirePermit(device)) {
+            return "";
+        }
+        try {
+            RunningCommand running = startProcess(command);
+            if (running == null) {
+                return "";
+            }
+            return drain(running, timeoutMs, maxLen);
+        } finally {
+            engine.release(device);
+        }
+    }
+
+    // Returns null if the command couldn't be started natively, same semantics as executeProcess otherwise
+    private String executeNative(String shellLine, long timeoutMs, int maxLen) {
+        String device = serial;
+        if (!acquirePermit(device)) {
+            return "";
+        }
+        try {
+            RunningCommand running = startNative(shellLine);
+            if (running == null) {
+                return null;
+            }
+            return drain(running, timeoutMs, maxLen);
+        } finally {
+            engine.release(device);
+        }
+    }
+
+    // Returns false if the command couldn't be started natively
+    private boolean executeLinesNative(String shellLine, long timeoutMs, Consumer<String> onLine) {
+        String device = serial;
+        if (!acquirePermit(device)) {
+            return true;
+        }
+        try {
+            RunningCommand running = startNative(shellLine);
+            if (running == null) {
+                return false;
+            }
+            drainLines(running, timeoutMs, onLine);
+            return true;
+        } finally {
+            engine.release(device);
+        }
+    }
+
+    private boolean nativeUsable() {
+        return USE_NATIVE_CLIENT && nativeFailures.get() < MAX_NATIVE_FAILURES;
+    }
+
+    private String drain(RunningCommand running, long timeoutMs, int maxLen) {
+        Runnable abort = running::kill;
+        inFlight.add(abort);
+        try {
+            StreamDrain drain = StreamDrain.start(running.getOutput(), maxLen);
+            if (!drain.await(timeoutMs)) {
+                running.kill();
+            }
+            return drain.getOutput();
+        } finally {
+            inFlight.remove(abort);
+        }
+    }
+
+    // For commands that may print tens of MB (a full dumpsys, logcat -d): output past SPILL_THRESHOLD
+    // goes to a temp file instead of the heap. Read it with forEachLine, the caller closes the buffer.
+    // Never runs in the shell session, which hands its output over as a String
+    public OutputBuffer capture(String[] command, long timeoutMs) {
+        String device = serial;
+        if (!acquirePermit(device)) {
+            return new OutputBuffer(0);
+        }
+        try {
+            String shellLine = toShellLine(command);
+            RunningCommand running = shellLine == null ? null : startNative(shellLine);
+            if (running == null) {
+                running = startProcess(command);
+            }
+            if (running == null) {
+                return new OutputBuffer(0);
+            }
+            Runnable abort = running::kill;
+            inFlight.add(abort);
+            try {
+                StreamDrain drain = StreamDrain.startSpilling(running.getOutput(), Utilities.MAX_LEN, SPILL_THRESHOLD);
+                if (!drain.await(timeoutMs)) {
+                    running.kill();
+                    // the buffer is handed over, the drain must be done writing to it
+                    drain.await(STREAM_CLOSE_GRACE_MS);
+                }
+                return drain.getBuffer();
+            } finally {
+                inFlight.remove(abort);
+            }
+        } finally {
+            engine.release(device);
+        }
+    }
+
+    private OutputBuffer capture(CommandTemplate template, String[] command, long defaultTimeoutMs) {
+        long deadline = timeouts.deadlineFor(serial, template, defaultTimeoutMs);
+        long start = System.currentTimeMillis();
+        OutputBuffer output = capture(command, deadline);
+        timeouts.record(serial, template, System.currentTimeMillis() - start, deadline, 0);
+        return output;
+    }
+
+    // Passes lines on until closed, closing waits for a line being passed on
+    private static class LineGate implements Consumer<String> {
+        private final Consumer<String> onLine;
+        private boolean closed;
+
+        LineGate(Consumer<String> onLine) {
+            this.onLine = onLine;
+        }
+
+        @Override
+        public synchronized void accept(String line) {
+            if (!closed) {
+                onLine.accept(line);
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+    }
+
+    private void drainLines(RunningCommand running, long timeoutMs, Consumer<String> onLine) {
+        Runnable abort = running::kill;
+        inFlight.add(abort);
+        try {
+            StreamDrain drain = StreamDrain.startLines(running.getOutput(), onLine);
+            if (!drain.await(timeoutMs)) {
+                running.kill();
+                // let the drain observe the closed stream before returning
+                drain.await(STREAM_CLOSE_GRACE_MS);
+            }
+        } finally {
+            inFlight.remove(abort);
+        }
+    }
+
+    // Started lazily, returns null if the adb server can't be reached (yet)
+    public synchronized DeviceTracker getDeviceTracker() {
+        if (tracker == null && nativeUsable()) {
+            tracker = DeviceTracker.start(adbClient, TRACKER_FIRST_LIST_TIMEOUT_MS);
+            if (tracker != null) {
+                tracker.addListener(this::onDeviceStateChange);
+            }
+        }
+        return tracker;
+    }
+
+    // Commands in flight on a device that just went away can't succeed anymore, they're stopped right away
+    private void onDeviceStateChange(String changedSerial, String state) {
+        boolean disconnected = state == null || state.equals("offline");
+        String target = serial;
+        if (!disconnected || (target != null && !target.equals(changedSerial))) {
+            return;
+        }
+        // a device coming back may have been reflashed, wiped or simply rebooted
+        cache.invalidateAll(changedSerial);
+        files.clear();
+        deviceProps = null;
+        // adbd comes back unprivileged, ensurePrivileged confirms the recorded route again
+        privilege = null;
+        // not closeSession(), its lock is held by whoever waits on the session's output
+        ShellSession current = session;
+        if (current != null) {
+            current.close();
+        }
+        for (Runnable abort : inFlight) {
+            abort.run();
+        }
+    }
+
+    // Returns once the device dropped off after a reboot command, so waiting for it doesn't see it still online
+    private void awaitDisconnect() {
+        DeviceTracker tracker = getDeviceTracker();
+        String target = serial;
+        if (tracker != null && target != null) {
+            tracker.awaitState(target, state -> state == null || state.equals("offline"), REBOOT_DISCONNECT_TIMEOUT_MS);
+        }
+    }
+
+    // Returns null if the command should run another way: the native client is off or keeps failing to connect,
+    // or the server refused the request, in which case the adb client gets to report the error in its own words
+    private RunningCommand startNative(String shellLine) {
+        if (!nativeUsable()) {
+            return null;
+        }
+        try {
+            AdbClient.ShellStream stream = adbClient.openShell(serial, shellLine);
+            nativeFailures.set(0);
+            return stream;
+        } catch (AdbClient.FailException e) {
+            return null;
+        } catch (IOException e) {
+            nativeFailures.incrementAndGet();
+            return null;
+        }
+    }
+
+    // Takes one of device's permits, hand the same device to engine.release: the serial may change meanwhile
+    private boolean acquirePermit(String device) {
+        try {
+            engine.acquire(device);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Every call gets its own builder so commands can run from any thread
+    private static RunningCommand startProcess(String[] command) {
+        ProcessBuilder procBuilder = new ProcessBuilder(command);
         procBuilder.redirectErrorStream(true);
         try {
-            Process proc = procBuilder.start();
-            proc.waitFor(timeoutMs, TimeUnit.MILLISECONDS);
-            return Utilities.readFully(proc.getInputStream());
-        } catch (IOException | InterruptedException e) {
+            return RunningCommand.of(procBuilder.start());
+        } catch (IOException e) {
             e.printStackTrace();
-            return "";
+            return null;
+        }
+    }
+
+    // Runs the command on its own native connection or in its own process (never the shell session)
+    // and completes with its output. If the deadline passes the future fails with TimeoutException,
+    // if it's cancelled or fails for any reason the command is killed.
+    public CompletableFuture<String> executeAsync(String[] command, long deadlineMs) {
+        return startAsync(command, deadlineMs, is -> StreamDrain.start(is, Utilities.MAX_LEN), StreamDrain::getOutput);
+    }
+
+    public CompletableFuture<Void> executeLinesAsync(String[] command, long deadlineMs, Consumer<String> onLine) {
+        return startAsync(command, deadlineMs, is -> StreamDrain.startLines(is, onLine), drain -> null);
+    }
+
+    private <T> CompletableFuture<T> startAsync(String[] command, long deadlineMs,
+                                                Function<InputStream, StreamDrain> drainStarter,
+                                                Function<StreamDrain, T> resultOf) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> deadline = DEADLINES.schedule(() -> {
+            String message = "Deadline of " + deadlineMs + " ms exceeded: " + Arrays.toString(command);
+            result.completeExceptionally(new TimeoutException(message));
+        }, deadlineMs, TimeUnit.MILLISECONDS);
+        result.whenComplete((output, error) -> deadline.cancel(false));
+
+        // waiting for a permit blocks, so the process is started from the engine.
+        // The permit is returned when the result completes, by then the serial may have changed
+        String device = serial;
+        engine.execute(() -> {
+            if (!acquirePermit(device)) {
+                result.cancel(false);
+                return;
+            }
+            if (result.isDone()) {
+                engine.release(device);
+                return;
+            }
+            String shellLine = toShellLine(command);
+            RunningCommand running = shellLine == null ? null : startNative(shellLine);
+            if (running == null) {
+                ProcessBuilder asyncBuilder = new ProcessBuilder(command);
+                asyncBuilder.redirectErrorStream(true);
+                try {
+                    running = RunningCommand.of(asyncBuilder.start());
+                } catch (IOException e) {
+                    engine.release(device);
+                    result.completeExceptionally(e);
+                    return;
+                }
+            }
+            RunningCommand started = running;
+            Runnable abort = () -> result.completeExceptionally(new IOException("Device disconnected: " + Arrays.toString(command)));
+            inFlight.add(abort);
+            StreamDrain drain = drainStarter.apply(started.getOutput());
+            drain.finished().thenRun(() -> result.complete(resultOf.apply(drain)));
+            result.whenComplete((output, error) -> {
+                inFlight.remove(abort);
+                engine.release(device);
+                if (error != null) {
+                    started.kill();
+                }
+            });
+        });
+        return result;
+    }
+
+    // null until a device was picked
+    public String getSerial() {
+        return serial;
+    }
+
+    public ExecutionEngine getEngine() {
+        return engine;
+    }
+
+    // Returns the command line the device shell would receive or null if the command can't use the session
+    private String toSessionCommand(String[] command) {
+        if (!USE_SHELL_SESSION) {
+            return null;
+        }
+        return toShellLine(command);
+    }
+
+    // Returns null if it's not an 'adb shell' command with arguments
+    private String toShellLine(String[] command) {
+        if (adbTerms == null || command.length <= adbTerms.length + 1) {
+            return null;
+        }
+        for (int i = 0; i < adbTerms.length; i++) {
+            if (!adbTerms[i].equals(command[i])) {
+                return null;
+            }
+        }
+        if (!command[adbTerms.length].equals("shell")) {
+            return null;
+        }
+        // adb itself joins shell arguments with spaces
+        return String.join(" ", Arrays.asList(command).subList(adbTerms.length + 1, command.length));
+    }
+
+    // Returns null if the session is unavailable or busy with another thread's command,
+    // in which case the command should run in its own process
+    private String executeInSession(String shellCommand, long timeoutMs) {
+        if (!sessionLock.tryLock()) {
+            return null;
+        }
+        try {
+            if (!ensureSession()) {
+                return null;
+            }
+            String output = session.execute(shellCommand, timeoutMs);
+            if (output == null) {
+                sessionFailures++;
+                closeSession();
+            }
+            return output;
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    private boolean executeLinesInSession(String shellCommand, long timeoutMs, Consumer<String> onLine) {
+        if (!sessionLock.tryLock()) {
+            return false;
+        }
+        try {
+            if (!ensureSession()) {
+                return false;
+            }
+            boolean usable = session.executeLines(shellCommand, timeoutMs, onLine);
+            if (!usable) {
+                sessionFailures++;
+                closeSession();
+            }
+            return usable;
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    private boolean ensureSession() {
+        if (session != null && session.isAlive()) {
+            return true;
+        }
+        if (sessionFailures >= MAX_SESSION_FAILURES) {
+            return false;
+        }
+        session = ShellSession.open(adbTerms);
+        if (session == null) {
+            sessionFailures++;
+            return false;
+        }
+        return true;
+    }
+
+    // Must be called before anything that restarts adbd or the device
+    public void closeSession() {
+        adbClient.clearFeatures();
+        sessionLock.lock();
+        try {
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+        } finally {
+            sessionLock.unlock();
         }
     }
 
     public String uninstallPackagePerUser(String pkgName) {
-        return executeCommandWithTimeout(PM_UNINSTALL_PER_USER.build(pkgName), 3000);
+        return execute(PM_UNINSTALL_PER_USER, PM_UNINSTALL_PER_USER.build(pkgName), 3000);
     }
 
     public String uninstallPackagePerUserKeepData(String pkgName) {
-        return executeCommandWithTimeout(PM_UNINSTALL_PER_USER_KEEP.build(pkgName), 3000);
+        return execute(PM_UNINSTALL_PER_USER_KEEP, PM_UNINSTALL_PER_USER_KEEP.build(pkgName), 3000);
+    }
+
+    // Uninstalls all packages with as few adb invocations as possible, each one running a script of
+    // 'pm uninstall' commands. Returns pm's output for every package in the order given,
+    // the output is empty if the script didn't get to the package, or didn't finish it, before timing out.
+    // onResult gets each package's output as soon as it's known, packages the script didn't get through are left out
+    public Map<String, String> uninstallPackagesBatch(List<String> pkgNames, boolean keepData, BiConsumer<String, String> onResult) {
+        CommandTemplate template = keepData ? PM_UNINSTALL_PER_USER_KEEP : PM_UNINSTALL_PER_USER;
+        Map<String, String> results = new LinkedHashMap<>();
+        StringBuilder script = new StringBuilder(MAX_SCRIPT_LENGTH);
+        int scriptPackages = 0;
+        for (String pkgName : pkgNames) {
+            results.put(pkgName, "");
+            String uninstall = "echo " + Utilities.shellQuote(BATCH_RESULT_MARKER + pkgName) + "; " + toShellLine(template.build(pkgName)) + " 2>&1; ";
+            if (scriptPackages > 0 && script.length() + uninstall.length() > MAX_SCRIPT_LENGTH) {
+                runUninstallScript(script.toString(), scriptPackages, results, onResult);
+                script.setLength(0);
+                scriptPackages = 0;
+            }
+            script.append(uninstall);
+            scriptPackages++;
+        }
+        if (scriptPackages > 0) {
+            runUninstallScript(script.toString(), scriptPackages, results, onResult);
+        }
+        return results;
+    }
+
+    // A package's output is complete once the next package's marker arrives, the last one's once the script ended.
+    // The package being uninstalled when the script is cut off has no result, it may still be uninstalled or not
+    private void runUninstallScript(String script, int packageCount, Map<String, String> results, BiConsumer<String, String> onResult) {
+        String[] pkgName = {null};
+        StringBuilder pkgOutput = new StringBuilder();
+        long deadline = timeouts.deadlineFor(serial, SHELL_SCRIPT, "uninstall", packageCount, 3000L * packageCount, 0);
+        long start = System.currentTimeMillis();
+        executeCommandLines(SHELL_SCRIPT.build(script), deadline, line -> {
+            if (line.startsWith(BATCH_RESULT_MARKER)) {
+                if (pkgName[0] != null) {
+                    putUninstallResult(pkgName[0], pkgOutput.toString().trim(), results, onResult);
+                }
+                pkgName[0] = line.substring(BATCH_RESULT_MARKER.length());
+                pkgOutput.setLength(0);
+                return;
+            }
+            if (pkgName[0] != null) {
+                pkgOutput.append(line).append('\n');
+            }
+        });
+        long elapsed = System.currentTimeMillis() - start;
+        timeouts.record(serial, SHELL_SCRIPT, "uninstall", packageCount, elapsed, deadline, 0);
+        invalidateAfter(SHELL_SCRIPT);
+        if (pkgName[0] != null && elapsed < deadline) {
+            putUninstallResult(pkgName[0], pkgOutput.toString().trim(), results, onResult);
+        }
+    }
+
+    private static void putUninstallResult(String pkgName, String output, Map<String, String> results, BiConsumer<String, String> onResult) {
+        if (results.containsKey(pkgName)) {
+            results.put(pkgName, output);
+            onResult.accept(pkgName, output);
+        }
     }
 
     public String disablePackageByName(String pkgName) {
-        return executeCommandWithTimeout(DISABLE_USER.build(pkgName), 3000);
+        return execute(DISABLE_USER, DISABLE_USER.build(pkgName), 3000);
     }
 
     public String installExistingPackage(String pkgName) {
-        return executeCommandWithTimeout(INSTALL_BACK.build(pkgName), 3000);
+        return execute(INSTALL_BACK, INSTALL_BACK.build(pkgName), 3000);
     }
 
     public String getPackagePath(String pkgName) {
-        return executeCommandWithTimeout(PM_PATH.build(pkgName), 3000);
+        return execute(PM_PATH, PM_PATH.build(pkgName), 3000);
     }
 
     public String changeOwnership(String owner, String group, String phonePath) {
@@ -186,13 +945,17 @@ public class Commands {
                 CHOWN.build(isSU(), "-R", owner + ":" + group, phonePath) :
                 CHOWN.build(isSU(), owner + ":" + group, phonePath);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 3000);
+        String output = execute(CHOWN, command, 3000);
+        files.invalidate(phonePath);
+        return output;
     }
 
     public String chmod(String permissions, String phonePath) {
         String[] command = CHMOD.build(isSU(), permissions, phonePath);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 3000);
+        String output = execute(CHMOD, command, 3000);
+        files.invalidate(phonePath);
+        return output;
     }
 
     // tar commands will override existing files in phone storage
@@ -205,76 +968,299 @@ public class Commands {
                 firstDir
         );
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 3000);
+        String output = executeCommandWithTimeout(command, TRANSFER_TIMEOUT_MS);
+        invalidateAfter(TAR);
+        files.invalidate(tarPath);
+        return output;
     }
 
     public String extractTar(String tarPath, String changedDir) {
         String[] command = EXTRACT_TAR.build(isSU(), tarPath, changedDir);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 3000);
+        String output = executeCommandWithTimeout(command, TRANSFER_TIMEOUT_MS);
+        invalidateAfter(EXTRACT_TAR);
+        files.invalidate(changedDir);
+        return output;
     }
 
     public String pullAPK(String apkPath, String toPath) {
-        return executeCommandWithTimeout(ADB_PULL.build(apkPath, toPath), 3000);
+        return pull(apkPath, toPath);
     }
 
+    // Output matches adb pull's whichever way the file is transferred
     public String pull(String phonePath, String pcPath) {
-        return executeCommandWithTimeout(ADB_PULL.build(phonePath, pcPath), 3000);
+        String output = syncPull(phonePath, pcPath);
+        if (output != null) {
+            return output;
+        }
+        String[] command = pcPath == null ? ADB_PULL.build(phonePath) : ADB_PULL.build(phonePath, pcPath);
+        return executeCommandWithTimeout(command, TRANSFER_TIMEOUT_MS);
     }
 
     public String pull(String phonePath) {
-        return executeCommandWithTimeout(ADB_PULL.build(phonePath), 3000);
+        return pull(phonePath, null);
     }
 
     public String push(String pcPath, String phonePath) {
-        String[] command = ADB_PUSH.build(pcPath, phonePath);
-        return executeCommandWithTimeout(command, 3000);
+        String output = syncPush(pcPath, phonePath);
+        if (output != null) {
+            invalidateAfter(ADB_PUSH);
+        } else {
+            String[] command = ADB_PUSH.build(pcPath, phonePath);
+            output = executeTransfer(ADB_PUSH, command, 3000, localFileSize(pcPath));
+        }
+        files.invalidate(phonePath);
+        return output;
+    }
+
+    // Pulls a single file over a sync connection. Returns null if no sync connection could be opened
+    // or the remote path is a directory, adb pull takes care of those
+    private String syncPull(String phonePath, String pcPath) {
+        String device = serial;
+        if (!acquirePermit(device)) {
+            return null;
+        }
+        AdbSync sync = openSync();
+        if (sync == null) {
+            engine.release(device);
+            return null;
+        }
+        Path local = null;
+        try {
+            DirEntry stat = sync.stat(phonePath);
+            if (stat == null) {
+                return "adb: error: failed to stat remote object '" + phonePath + "': No such file or directory";
+            }
+            if (stat.isDirectory()) {
+                return null;
+            }
+            local = pullTarget(phonePath, pcPath);
+            Path target = local;
+            return runSync(sync, ADB_PULL, stat.size, phonePath, "pulled", () -> sync.pull(phonePath, target));
+        } catch (InvalidPathException e) {
+            return "adb: error: cannot create '" + pcPath + "': " + e.getReason();
+        } catch (FileSystemException e) {
+            return "adb: error: cannot create '" + local + "': " + describe(e);
+        } catch (IOException e) {
+            deletePartial(local);
+            String reason = e instanceof AdbClient.FailException ? "remote " + e.getMessage() : e.getMessage();
+            return "adb: error: failed to copy '" + phonePath + "' to '" + local + "': " + reason;
+        } finally {
+            sync.close();
+            engine.release(device);
+        }
+    }
+
+    // Pushes a single file over a sync connection, returns null under the same conditions as syncPull
+    private String syncPush(String pcPath, String phonePath) {
+        Path local;
+        try {
+            local = Paths.get(pcPath);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!Files.exists(local)) {
+            return "adb: error: cannot stat '" + pcPath + "': No such file or directory";
+        }
+        if (Files.isDirectory(local)) {
+            return null;
+        }
+        String device = serial;
+        if (!acquirePermit(device)) {
+            return null;
+        }
+        AdbSync sync = openSync();
+        if (sync == null) {
+            engine.release(device);
+            return null;
+        }
+        String remote = phonePath;
+        try {
+            DirEntry existing = phonePath.endsWith("/") ? null : sync.stat(phonePath);
+            if (phonePath.endsWith("/") || (existing != null && existing.isDirectory())) {
+                remote = (phonePath.endsWith("/") ? phonePath : phonePath + "/") + local.getFileName();
+            }
+            String target = remote;
+            int permissions = Files.isExecutable(local) ? 0755 : 0644;
+            long mtime = Files.getLastModifiedTime(local).to(TimeUnit.SECONDS);
+            return runSync(sync, ADB_PUSH, Files.size(local), pcPath, "pushed", () -> sync.push(local, target, permissions, mtime));
+        } catch (FileSystemException e) {
+            return "adb: error: cannot stat '" + pcPath + "': " + describe(e);
+        } catch (IOException e) {
+            String reason = e instanceof AdbClient.FailException ? "remote " + e.getMessage() : e.getMessage();
+            return "adb: error: failed to copy '" + pcPath + "' to '" + remote + "': " + reason;
+        } finally {
+            sync.close();
+            engine.release(device);
+        }
+    }
+
+    private interface SyncOperation {
+        long transfer() throws IOException;
+    }
+
+    // Runs the transfer under a deadline learned for the template and returns adb's summary line
+    private String runSync(AdbSync sync, CommandTemplate template, long size, String path, String verb,
+                           SyncOperation operation) throws IOException {
+        long deadline = timeouts.deadlineFor(serial, template, 3000, size);
+        ScheduledFuture<?> watchdog = DEADLINES.schedule(sync::abort, deadline, TimeUnit.MILLISECONDS);
+        Runnable abort = sync::abort;
+        inFlight.add(abort);
+        long start = System.currentTimeMillis();
+        long bytes;
+        try {
+            bytes = operation.transfer();
+        } catch (IOException e) {
+            if (watchdog.isDone()) {
+                timeouts.record(serial, template, System.currentTimeMillis() - start, deadline, size);
+                throw new IOException("deadline of " + deadline + " ms exceeded", e);
+            }
+            throw e;
+        } finally {
+            watchdog.cancel(false);
+            inFlight.remove(abort);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        timeouts.record(serial, template, elapsed, deadline, bytes);
+        double seconds = elapsed / 1000.0;
+        double rate = seconds > 0 ? bytes / (1024.0 * 1024.0) / seconds : 0;
+        return String.format(Locale.ROOT, "%s: 1 file %s, 0 skipped. %.1f MB/s (%d bytes in %.3fs)", path, verb, rate, bytes, seconds);
+    }
+
+    // Returns null if the native client is off or the server refused the device, adb then reports why
+    private AdbSync openSync() {
+        if (!nativeUsable()) {
+            return null;
+        }
+        try {
+            AdbSync sync = AdbSync.open(adbClient, serial);
+            nativeFailures.set(0);
+            return sync;
+        } catch (AdbClient.FailException e) {
+            return null;
+        } catch (IOException e) {
+            nativeFailures.incrementAndGet();
+            return null;
+        }
+    }
+
+    // Where adb pull puts the file: pcPath itself or inside it if it's a directory, the working directory without one
+    private static Path pullTarget(String phonePath, String pcPath) {
+        String name = phonePath.substring(phonePath.lastIndexOf('/') + 1);
+        if (pcPath == null) {
+            return Paths.get(name);
+        }
+        Path local = Paths.get(pcPath);
+        if (Files.isDirectory(local) || pcPath.endsWith("/") || pcPath.endsWith("\\")) {
+            return local.resolve(name);
+        }
+        return local;
+    }
+
+    // adb removes what it wrote of a failed pull
+    private static void deletePartial(Path local) {
+        if (local == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(local);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static String describe(FileSystemException e) {
+        if (e.getReason() != null) {
+            return e.getReason();
+        }
+        if (e instanceof NoSuchFileException) {
+            return "No such file or directory";
+        }
+        if (e instanceof AccessDeniedException) {
+            return "Permission denied";
+        }
+        return e.toString();
     }
 
     public String mkdir(String phonePath) {
         String[] command = MK_DIR.build(isSU(), phonePath);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 3000);
+        String output = execute(MK_DIR, command, 3000);
+        files.invalidate(phonePath);
+        return output;
     }
 
     public String rm(String phonePath) {
         String[] command = RM.build(phonePath);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 4000);
+        String output = execute(RM, command, 4000);
+        files.invalidate(phonePath);
+        return output;
     }
 
     public String rmSU(String phonePath) {
         String[] command = RM.buildSU(phonePath);
-        return executeCommandWithTimeout(command, 4000);
+        String output = execute(RM, command, 4000);
+        files.invalidate(phonePath);
+        return output;
     }
 
     public String rmRecurseForce(String phoneDir) {
         String[] command = RM_RECURSE_FORCE.build(isSU(), phoneDir);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 10_000);
+        String output = execute(RM_RECURSE_FORCE, command, 10_000);
+        files.invalidate(phoneDir);
+        return output;
     }
 
+    // Answered from what was listed or checked before if possible
     public boolean exists(String phonePath) {
+        Boolean known = files.exists(phonePath);
+        if (known != null) {
+            return known;
+        }
+        long since = files.generation();
+        String device = serial;
+        if (!isSU() && acquirePermit(device)) {
+            try (AdbSync sync = openSync()) {
+                if (sync != null) {
+                    DirEntry entry = sync.stat(phonePath);
+                    files.putStat(since, phonePath, entry);
+                    return entry != null;
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to stat " + phonePath + ": " + e.getMessage());
+            } finally {
+                engine.release(device);
+            }
+        }
         String[] command = EXISTS.build(isSU(), phonePath);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 3000).startsWith("Yes");
+        boolean exists = execute(EXISTS, command, 3000).startsWith("Yes");
+        files.putPresence(since, phonePath, exists);
+        return exists;
     }
 
     public String install(String path) {
-        return executeCommandWithTimeout(ADB_INSTALL.build(path), 3000);
+        CommandTemplate install = adbInstall();
+        return executeTransfer(install, install.build(path), 10_000, localFileSize(path));
     }
 
     public String installReplace(String path) {
-        return executeCommandWithTimeout(ADB_INSTALL.build("-r", path), 3000);
+        CommandTemplate install = adbInstall();
+        return executeTransfer(install, install.build("-r", path), 10_000, localFileSize(path));
     }
     public String createInstall(int totalSizeBytes) {
         String[] command = INSTALL_CREATE.build(String.valueOf(totalSizeBytes));
-        return executeCommandWithTimeout(command, 3000);
+        return execute(INSTALL_CREATE, command, 3000);
     }
 
     public String installMultiple(String[] apks) {
         String[] installMultiple = ADB_INSTALL_MULTIPLE.build(apks);
-        return executeCommandWithTimeout(installMultiple, 30_000);
+        long totalSize = 0;
+        for (String apk : apks) {
+            totalSize += localFileSize(apk);
+        }
+        return executeTransfer(ADB_INSTALL_MULTIPLE, installMultiple, 30_000, totalSize);
     }
     public String installWrite(long splitApkSize, int sessionId, int index, String path) {
         String[] command = INSTALL_WRITE.build(
@@ -283,23 +1269,46 @@ public class Commands {
             String.valueOf(index),
             path
         );
-        return executeCommandWithTimeout(command, 3000);
+        return executeTransfer(INSTALL_WRITE, command, 3000, splitApkSize);
     }
 
     public String installCommit(int sessionId) {
         String[] command = INSTALL_COMMIT.build(String.valueOf(sessionId));
-        return executeCommandWithTimeout(command, 3000);
+        return execute(INSTALL_COMMIT, command, 3000);
     }
 
     public String installExistingPackage(String pkgName, int maxOutputLen) {
         String[] command = INSTALL_BACK.build(pkgName);
-        return executeCommandTrim(command, maxOutputLen);
+        String output = executeCommandTrim(command, maxOutputLen);
+        invalidateAfter(INSTALL_BACK);
+        return output;
     }
 
     public static boolean hasRoot(String output) {
         return output.startsWith("restarting adbd as root") || output.startsWith("adbd is already running as root");
     }
 
+    private PrivilegeType detectPrivilege() {
+        if (Commands.hasRoot(root())) {
+            return PrivilegeType.ADB_ROOT;
+        }
+        System.out.println("No adb root. Trying su, answer the request on your phone or grant Shell SU rights");
+        if (!checkSU()) {
+            Utilities.errExit("No su access.");
+        }
+        return PrivilegeType.SU;
+    }
+
+    // A single 'id' through the route, adbd may have restarted unprivileged or su been revoked since it was recorded
+    private boolean hasPrivilege(PrivilegeType privilege) {
+        if (privilege == PrivilegeType.SU) {
+            return checkSU();
+        }
+        return execute(CHECK_SU, CHECK_SU.build(), 3000).contains("uid=0");
+    }
+
+    // Su managers may ask the user to grant access on the phone first, so this always gets the full 10 s
+    // instead of a deadline learned from answers that came without asking
     public boolean checkSU() {
         String[] command = CHECK_SU.buildSU();
         System.out.println(Arrays.toString(command));
@@ -311,41 +1320,43 @@ public class Commands {
     }
 
     public String root() {
-        return executeCommandWithTimeout(ADB_ROOT.build(), 3000);
+        closeSession();
+        return execute(ADB_ROOT, ADB_ROOT.build(), 3000);
     }
 
     public String unroot() {
-        return executeCommandWithTimeout(ADB_UNROOT.build(), 3000);
+        closeSession();
+        return execute(ADB_UNROOT, ADB_UNROOT.build(), 3000);
     }
 
     public String remountReadOnly(String partition) {
         String[] command = REMOUNT_READ_ONLY.build(isSU(), partition);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 3000);
+        return execute(REMOUNT_READ_ONLY, command, 3000);
     }
 
     public String remountReadWrite(String partition) {
         String[] command = REMOUNT_READ_WRITE.build(isSU(), partition);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 3000);
+        return execute(REMOUNT_READ_WRITE, command, 3000);
     }
 
     public String mountAll() {
         String[] command = MOUNT.build("-a");
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 3000);
+        return execute(MOUNT, command, 3000);
     }
 
     public String mount(String src, String dest) {
         String[] command = MOUNT.build(src, dest);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 3000);
+        return execute(MOUNT, command, 3000);
     }
 
     public String mount(String fs, String opts, String src, String dest) {
         String[] command = MOUNT.build("-t", fs, "-o", opts, src, dest);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 3000);
+        return execute(MOUNT, command, 3000);
     }
 
     public List<Device> listAdbDevices() {
@@ -366,8 +1377,33 @@ public class Commands {
             devicesTemplate = FASTBOOT_DEVICES;
             stIndex = 0;
         }
-        String devicesOutput = executeCommandWithTimeout(devicesTemplate.build(), 50);
+        String devicesOutput = adb ? listDevicesNative() : null;
+        if (devicesOutput == null) {
+            devicesOutput = execute(devicesTemplate, devicesTemplate.build(), 10_000);
+        }
         System.out.println(devicesOutput);
+        return parseDevices(devicesOutput, stIndex);
+    }
+
+    // fastboot has no server to subscribe to so it's polled quietly, returns the last list seen
+    public List<Device> awaitFastbootDevices(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            String devicesOutput = execute(FASTBOOT_DEVICES, FASTBOOT_DEVICES.build(), 10_000);
+            List<Device> devices = parseDevices(devicesOutput, 0);
+            if (!devices.isEmpty() || System.currentTimeMillis() + FASTBOOT_POLL_INTERVAL_MS > deadline) {
+                return devices;
+            }
+            try {
+                Thread.sleep(FASTBOOT_POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return devices;
+            }
+        }
+    }
+
+    private static List<Device> parseDevices(String devicesOutput, int stIndex) {
         List<String> lines = splitOutputLines(devicesOutput);
         List<Device> devices = new ArrayList<>();
         for (int i = stIndex; i < lines.size(); i++) {
@@ -386,42 +1422,209 @@ public class Commands {
             String status = line.substring(space + 1).trim();
             devices.add(new Device(serial, status));
         }
-        return devices;
+        return devices;
+    }
+
+    // Same output as 'adb devices' or null if the server can't be reached
+    private String listDevicesNative() {
+        if (!nativeUsable()) {
+            return null;
+        }
+        try {
+            String devices = adbClient.devices(false);
+            nativeFailures.set(0);
+            return "List of devices attached\n" + devices;
+        } catch (IOException e) {
+            nativeFailures.incrementAndGet();
+            return null;
+        }
     }
 
     public String listPackagesWithUID(PackageType type) {
         String modifier = getPackageModifier(type);
         String[] command = LIST_PACKAGES_WITH_UID.build(modifier);
-        return executeCommandWithTimeout(command, 50);
+        return execute(LIST_PACKAGES_WITH_UID, command, 10_000);
     }
 
     public int getAndroidVersion() {
-        String vRes = executeCommandWithTimeout(GET_PROP.build("ro.build.version.release"), 50);
-        List<String> lines = splitOutputLines(vRes);
-        if (lines.size() == 0) {
-            return -1;
+        return getDeviceProps().getMajorVersion();
+    }
+
+    public String getBuildType() {
+        return getDeviceProps().getBuildType();
+    }
+
+    // The device's ro.* properties, dumped once per session. Later runs reuse the recorded snapshot for
+    // the cost of a single getprop as long as the device reports the same build fingerprint.
+    // Empty if the device couldn't be asked
+    public DeviceProps getDeviceProps() {
+        synchronized (propsLock) {
+            String target = serial;
+            DeviceProps props = deviceProps;
+            if (props != null && Objects.equals(target, propsSerial)) {
+                return props;
+            }
+            Path recordPath = Utilities.pathNextToExecutable(DEVICE_PROPS_FILE);
+            if (target != null) {
+                String fingerprint = queryProp(DeviceProps.FINGERPRINT);
+                props = fingerprint == null ? null : DeviceProps.load(recordPath, target, fingerprint);
+            }
+            if (props == null) {
+                DeviceProps.Parser parser = new DeviceProps.Parser();
+                executeLines(GET_ALL_PROPS, GET_ALL_PROPS.build(), 10_000, parser);
+                props = parser.build();
+                if (props == null) {
+                    return DeviceProps.empty();
+                }
+                // without a serial there's no telling which device it was next time
+                if (target != null) {
+                    props.save(recordPath, target);
+                }
+            }
+            propsSerial = target;
+            deviceProps = props;
+            return props;
         }
-        String v = lines.get(0);
-        int dot = v.indexOf('.');
-        String major = (dot == -1) ? v : v.substring(0, dot);
-        try {
-            return Integer.parseInt(major);
-        } catch (NumberFormatException e) {
-            return -1;
+    }
+
+    public Set<String> listPackageSet(PackageType type) {
+        Set<String> packages = new HashSet<>();
+        streamPackageNames(type, packages::add);
+        return packages;
+    }
+
+    public List<String> listPackageList(PackageType type) {
+        List<String> packages = new ArrayList<>();
+        streamPackageNames(type, packages::add);
+        return packages;
+    }
+
+    private void streamPackageNames(PackageType type, Consumer<String> onPackage) {
+        String[] command = LIST_PACKAGES_BY_TYPE.build(getPackageModifier(type));
+        executeLines(LIST_PACKAGES_BY_TYPE, command, 10_000, line -> {
+            String pkgName = Packages.parsePackageLine(line);
+            if (pkgName != null) {
+                onPackage.accept(pkgName);
+            }
+        });
+    }
+
+    // The device's packages, refreshed from the package manager's listings and kept on disk between runs.
+    // Cheap to call repeatedly, the listings are cached until a command changes packages.
+    // Falls back to the recorded index if the device couldn't be asked
+    public PackageIndex getPackageIndex() {
+        synchronized (indexLock) {
+            String target = serial;
+            Path recordPath = Utilities.pathNextToExecutable(PACKAGE_INDEX_FILE);
+            PackageIndex index = packageIndex;
+            if (index == null || !Objects.equals(target, indexSerial)) {
+                index = target == null ? new PackageIndex() : PackageIndex.load(recordPath, target);
+            }
+            List<PackageIndex.Entry> listed = listPackageEntries();
+            // a cut off listing would mark the packages it missed as removed
+            if (listed != null && !listed.isEmpty()) {
+                Set<String> stale = index.merge(listed);
+                if (!stale.isEmpty()) {
+                    lookUpPackageDetails(index, stale);
+                }
+            }
+            if (index.isDirty() && target != null) {
+                index.save(recordPath, target);
+            }
+            packageIndex = index;
+            indexSerial = target;
+            return index;
         }
     }
 
-    public String getBuildType() {
-        String[] command = GET_BUILD.build(isSU());
-        String buildOutput = executeCommandWithTimeout(command, 10_000);
-        List<String> lines = splitOutputLines(buildOutput);
-        return lines.isEmpty() ? "" : getPairValue(lines.get(0));
+    // The listing flags differ by Android version, the disabled and third party listings run alongside.
+    // Returns null if any of the listings was cut off by its deadline
+    private List<PackageIndex.Entry> listPackageEntries() {
+        int sdk = getDeviceProps().getSdk();
+        List<String> flags = new ArrayList<>();
+        if (sdk >= 26) {
+            flags.add("-U");
+        }
+        if (sdk >= 28) {
+            flags.add("--show-versioncode");
+        }
+        String[] command = LIST_PACKAGES_DETAILED.build(flags.isEmpty() ? new String[]{""} : flags.toArray(new String[0]));
+        CompletableFuture<Set<String>> disabled = engine.submit(() -> listPackageNames("-d"));
+        CompletableFuture<Set<String>> thirdParty = engine.submit(() -> listPackageNames("-3"));
+        List<PackageIndex.Entry> entries = new ArrayList<>();
+        boolean complete = executeLines(LIST_PACKAGES_DETAILED, "", 1, command, 10_000, line -> {
+            PackageIndex.Entry entry = PackageIndex.parseListing(line);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        });
+        Set<String> disabledNames = disabled.join(), thirdPartyNames = thirdParty.join();
+        if (!complete || disabledNames == null || thirdPartyNames == null) {
+            return null;
+        }
+        for (PackageIndex.Entry entry : entries) {
+            entry.enabled = !disabledNames.contains(entry.name);
+            entry.thirdParty = thirdPartyNames.contains(entry.name);
+        }
+        return entries;
+    }
+
+    // Returns null if the listing was cut off by its deadline
+    private Set<String> listPackageNames(String modifier) {
+        Set<String> names = new HashSet<>();
+        boolean complete = executeLines(LIST_PACKAGES_BY_TYPE, "", 1, LIST_PACKAGES_BY_TYPE.build(modifier), 10_000, line -> {
+            String pkgName = Packages.parsePackageLine(line);
+            if (pkgName != null) {
+                names.add(pkgName);
+            }
+        });
+        return complete ? names : null;
+    }
+
+    // Apks through the helper in one go, install times from dumpsys
+    private void lookUpPackageDetails(PackageIndex index, Set<String> pkgNames) {
+        CompletableFuture<Map<String, String>> paths = engine.submit(() -> getPackagePaths(pkgNames));
+        Map<String, String[]> installTimes = new ConcurrentHashMap<>();
+        if (pkgNames.size() <= MAX_SINGLE_PACKAGE_DUMPS) {
+            engine.forEachParallel(pkgNames, pkgName -> {
+                PackageIndex.TimesParser parser = new PackageIndex.TimesParser();
+                executeLines(DUMPSYS, "package", 1, DUMPSYS.build("package", pkgName), 10_000, parser);
+                String[] times = parser.getTimes().get(pkgName);
+                if (times != null) {
+                    installTimes.put(pkgName, times);
+                }
+            });
+        } else {
+            PackageIndex.TimesParser parser = new PackageIndex.TimesParser();
+            // takes far longer than a single package's dump, it learns its deadline separately
+            executeLines(DUMPSYS, "all packages", 1, DUMPSYS.build("package", "packages"), 30_000, parser);
+            installTimes.putAll(parser.getTimes());
+        }
+        for (String pkgName : pkgNames) {
+            String[] times = installTimes.get(pkgName);
+            if (times != null) {
+                index.setTimes(pkgName, times[0], times[1]);
+            }
+        }
+        paths.join().forEach((pkgName, output) -> index.setApks(pkgName, Packages.parseToList(output)));
+    }
+
+    public List<App> listApps(PackageType type) {
+        String[] command = LIST_PACKAGES_WITH_UID.build(getPackageModifier(type));
+        List<App> apps = new ArrayList<>();
+        executeLines(LIST_PACKAGES_WITH_UID, command, 10_000, line -> {
+            App app = Packages.parseAppLine(line);
+            if (app != null) {
+                apps.add(app);
+            }
+        });
+        return apps;
     }
 
     public String listPackagesBy(PackageType type) {
         String modifier = getPackageModifier(type);
         String[] command = LIST_PACKAGES_BY_TYPE.build(modifier);
-        return executeCommandWithTimeout(command, 50);
+        return execute(LIST_PACKAGES_BY_TYPE, command, 10_000);
     }
     private static String getPackageModifier(PackageType type) {
         switch (type) {
@@ -438,39 +1641,64 @@ public class Commands {
     public String move(String phoneSrc, String phoneDestination) {
         String[] command = MOVE.build(isSU(), phoneSrc, phoneDestination);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 10_000);
+        String output = executeCommandWithTimeout(command, TRANSFER_TIMEOUT_MS);
+        invalidateAfter(MOVE);
+        files.invalidate(phoneSrc);
+        files.invalidate(phoneDestination);
+        return output;
     }
 
     public String copy(String phoneSrc, String phoneDestination) {
         String[] command = COPY.build(isSU(), phoneSrc, phoneDestination);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 10_000);
+        String output = executeCommandWithTimeout(command, TRANSFER_TIMEOUT_MS);
+        invalidateAfter(COPY);
+        files.invalidate(phoneDestination);
+        return output;
     }
 
     public String getSELinuxMode() {
         String[] command = GET_SELINUX_MODE.build();
-        return executeCommandWithTimeout(command, 10_000);
+        return execute(GET_SELINUX_MODE, command, 10_000);
     }
 
     public String setProp(String key, String value) {
         String[] command = SET_PROP.buildSU(key, value);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 10_000);
+        return execute(SET_PROP, command, 10_000);
     }
 
+    // Read-only properties come from the snapshot, others can change any time and are queried
     public String getProp(String key) {
-        String[] command = GET_PROP.build(isSU(), key);
-        System.out.println(Arrays.toString(command));
-        String propOutput = executeCommandWithTimeout(command, 10_000);
+        if (DeviceProps.isReadOnly(key)) {
+            return getDeviceProps().get(key);
+        }
+        System.out.println(Arrays.toString(GET_PROP.build(isSU(), key)));
+        return queryProp(key);
+    }
+
+    private String queryProp(String key) {
+        String propOutput = execute(GET_PROP, GET_PROP.build(isSU(), key), 10_000);
         List<String> lines = splitOutputLines(propOutput);
         return lines.isEmpty() ? null : lines.get(0);
     }
 
     // Returns phone directory's size in bytes or -1 if dir doesn't exist
     public long getDirectorySize(String phoneDir) {
+        Long known = files.getSize(phoneDir);
+        if (known != null) {
+            return known;
+        }
+        long since = files.generation();
+        long size = getDirectorySizeUncached(phoneDir);
+        files.putSize(since, phoneDir, size);
+        return size;
+    }
+
+    private long getDirectorySizeUncached(String phoneDir) {
         String[] command = DIRECTORY_SIZE.build(phoneDir);
         System.out.println(Arrays.toString(command));
-        String duRes = executeCommandWithTimeout(command, 10_000);
+        String duRes = execute(DIRECTORY_SIZE, command, 10_000);
         if (duRes.startsWith("du:") || duRes.isEmpty()) {
             return -1;
         }
@@ -481,43 +1709,339 @@ public class Commands {
         if (space == -1) {
             return -1;
         }
-        String sizeFormat = duRes.substring(0, space).trim();
-        if (sizeFormat.isEmpty()) {
+        // exact KiB like the helper's sizes, both fill the same cache
+        String kilobytes = duRes.substring(0, space).trim();
+        if (kilobytes.isEmpty()) {
             return 0;
         }
-        String value = sizeFormat.substring(0, sizeFormat.length()-1);
-        double val = Double.parseDouble(value);
-        char unit = sizeFormat.charAt(sizeFormat.length()-1);
-        switch (unit) {
-            case 'T':
-                return (long)(val * 1024 * 1024 * 1024 * 1024);
-            case 'G':
-                return (long)(val * 1024 * 1024 * 1024);
-            case 'M':
-                return (long)(val * 1024 * 1024);
-            case 'K':
-                return (long)(val * 1024);
-            default:
-                return (long)(val);
+        try {
+            return Long.parseLong(kilobytes) * 1024;
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
+    // Hidden entries are left out, as 'ls -1' does. They're still listed and recorded, a listing answers
+    // whether each path in the directory exists
     public List<String> listItems(String phoneDir) {
-        String[] command = LS.build(isSU(), "-1", phoneDir);
-        String output = executeCommandWithTimeout(command, 10_000);
-        return splitOutputLines(output);
+        List<String> known = files.getNames(phoneDir);
+        if (known != null) {
+            return withoutHidden(known);
+        }
+        long since = files.generation();
+        List<DirEntry> entries = new ArrayList<>();
+        List<String> listed = isSU() ? null : syncList(Collections.singletonList(phoneDir), (dir, entry) -> entries.add(entry));
+        if (listed != null) {
+            if (!listed.isEmpty()) {
+                files.putListing(since, phoneDir, entries, true);
+            }
+            List<String> items = new ArrayList<>(entries.size());
+            entries.forEach(entry -> items.add(entry.name));
+            return withoutHidden(items);
+        }
+        List<String> items = new ArrayList<>();
+        String[] command = LS.build(isSU(), "-1A", phoneDir);
+        executeLines(LS, "-1A", 1, command, 10_000, line -> {
+            if (!line.isEmpty()) {
+                items.add(line);
+            }
+        });
+        files.putNames(since, phoneDir, items);
+        return withoutHidden(items);
+    }
+
+    private static List<String> withoutHidden(List<String> names) {
+        List<String> visible = new ArrayList<>(names.size());
+        for (String name : names) {
+            if (!name.startsWith(".")) {
+                visible.add(name);
+            }
+        }
+        return visible;
     }
 
-    // Find a way to parse directories with spaces in name
     public List<DirEntry> listDirectorySU(String phoneDir) {
-        String[] command = LS.build(isSU(), "-l", phoneDir);
-        String output = executeCommandWithTimeout(command, 10_000);
-        return splitOutputLines(output).stream().skip(1).map(DirEntry::fromLine).collect(Collectors.toList());
+        return listDirectories(Collections.singletonList(phoneDir)).get(phoneDir);
+    }
+
+    // Lists every directory over a single sync connection, in SU mode (where sync lacks the rights)
+    // or without the native client each directory is an 'ls -l'. Missing directories map to empty lists.
+    // Directories listed before aren't listed again
+    public Map<String, List<DirEntry>> listDirectories(Collection<String> phoneDirs) {
+        Map<String, List<DirEntry>> listings = new LinkedHashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (String dir : phoneDirs) {
+            List<DirEntry> known = files.getListing(dir);
+            listings.put(dir, known == null ? new ArrayList<>() : known);
+            if (known == null) {
+                unknown.add(dir);
+            }
+        }
+        long since = files.generation();
+        List<String> listed = isSU() ? null : syncList(unknown, (dir, entry) -> listings.get(dir).add(entry));
+        if (listed != null) {
+            for (String dir : listed) {
+                files.putListing(since, dir, listings.get(dir), true);
+            }
+            return listings;
+        }
+        for (String dir : unknown) {
+            List<DirEntry> entries = listings.get(dir);
+            // -A as the sync listing includes hidden entries, the listing is recorded as complete
+            String[] command = LS.build(isSU(), "-lA", dir);
+            executeLines(LS, "-lA", 1, command, 10_000, line -> {
+                // the first line is the total block count
+                if (line.isEmpty() || line.startsWith("total ")) {
+                    return;
+                }
+                DirEntry entry = DirEntry.fromLine(line);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            });
+            files.putListing(since, dir, entries, true);
+        }
+        return listings;
+    }
+
+    // Returns null if the path doesn't exist
+    public DirEntry stat(String phonePath) {
+        DirEntry known = files.stat(phonePath);
+        if (known != null || Boolean.FALSE.equals(files.exists(phonePath))) {
+            return known;
+        }
+        long since = files.generation();
+        DirEntry entry = statUncached(phonePath);
+        files.putStat(since, phonePath, entry);
+        return entry;
+    }
+
+    private DirEntry statUncached(String phonePath) {
+        String device = serial;
+        if (!isSU() && acquirePermit(device)) {
+            try (AdbSync sync = openSync()) {
+                if (sync != null) {
+                    return sync.stat(phonePath);
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to stat " + phonePath + ": " + e.getMessage());
+            } finally {
+                engine.release(device);
+            }
+        }
+        // adb joins plain shell arguments with spaces, only su commands get their arguments quoted
+        String path = isSU() ? phonePath : Utilities.shellQuote(phonePath);
+        String[] command = LS.build(isSU(), "-ld", path);
+        DirEntry entry = DirEntry.fromLine(execute(LS, "-ld", command, 3000).trim());
+        if (entry != null) {
+            // ls prints the path as given
+            entry.name = entry.name.substring(entry.name.lastIndexOf('/') + 1);
+        }
+        return entry;
+    }
+
+    // Returns the directories listed completely, a failure stops the listing.
+    // Returns null if no sync connection could be opened, nothing was listed then
+    private List<String> syncList(Collection<String> phoneDirs, BiConsumer<String, DirEntry> onEntry) {
+        if (phoneDirs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String device = serial;
+        if (!acquirePermit(device)) {
+            return null;
+        }
+        List<String> listed = new ArrayList<>();
+        try (AdbSync sync = openSync()) {
+            if (sync == null) {
+                return null;
+            }
+            for (String dir : phoneDirs) {
+                sync.list(dir, entry -> onEntry.accept(dir, entry));
+                listed.add(dir);
+            }
+            return listed;
+        } catch (IOException e) {
+            System.err.println("Failed to list " + phoneDirs + ": " + e.getMessage());
+            return listed;
+        } finally {
+            engine.release(device);
+        }
+    }
+
+    // pm path output for every package, empty for packages that aren't installed
+    public Map<String, String> getPackagePaths(Collection<String> pkgNames) {
+        Map<String, StringBuilder> paths = new LinkedHashMap<>();
+        for (String pkgName : pkgNames) {
+            paths.put(pkgName, new StringBuilder());
+        }
+        boolean answered = runHelper(DeviceHelper.PATHS, pkgNames, (pkgName, apk) -> {
+            StringBuilder output = paths.get(pkgName);
+            if (output != null) {
+                output.append("package:").append(apk).append('\n');
+            }
+        });
+        Map<String, String> results = new LinkedHashMap<>();
+        for (String pkgName : pkgNames) {
+            results.put(pkgName, answered ? paths.get(pkgName).toString().trim() : getPackagePath(pkgName));
+        }
+        return results;
+    }
+
+    public Map<String, Boolean> exists(Collection<String> phonePaths) {
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (String path : phonePaths) {
+            Boolean known = files.exists(path);
+            results.put(path, known);
+            if (known == null) {
+                unknown.add(path);
+            }
+        }
+        long since = files.generation();
+        if (runHelper(DeviceHelper.EXISTS, unknown, (path, value) -> {
+            results.put(path, value.equals("1"));
+            files.putPresence(since, path, value.equals("1"));
+        })) {
+            // paths the helper didn't answer for
+            results.replaceAll((path, exists) -> exists != null && exists);
+            return results;
+        }
+        for (String path : unknown) {
+            results.put(path, exists(path));
+        }
+        return results;
+    }
+
+    // Sizes in bytes, -1 for directories that don't exist
+    public Map<String, Long> getDirectorySizes(Collection<String> phoneDirs) {
+        Map<String, Long> results = new LinkedHashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (String dir : phoneDirs) {
+            Long known = files.getSize(dir);
+            results.put(dir, known);
+            if (known == null) {
+                unknown.add(dir);
+            }
+        }
+        long since = files.generation();
+        boolean answered = runHelper(DeviceHelper.SIZES, unknown, (dir, value) -> {
+            long size;
+            try {
+                size = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+            results.put(dir, size);
+            files.putSize(since, dir, size);
+        });
+        for (String dir : unknown) {
+            if (!answered) {
+                results.put(dir, getDirectorySize(dir));
+            }
+            if (results.get(dir) == null) {
+                results.put(dir, -1L);
+            }
+        }
+        return results;
+    }
+
+    // Answers the queries with as few helper invocations as the command length allows, handing every
+    // (query, value) answer to onAnswer. Returns false without asking anything if the helper isn't usable
+    private boolean runHelper(String verb, Collection<String> queries, BiConsumer<String, String> onAnswer) {
+        if (queries.isEmpty()) {
+            return true;
+        }
+        String remotePath = ensureHelper();
+        if (remotePath == null) {
+            return false;
+        }
+        List<String> args = new ArrayList<>();
+        int length = 0;
+        for (String query : queries) {
+            // adb joins plain shell arguments with spaces, su commands get their arguments quoted by the template
+            String arg = isSU() ? query : Utilities.shellQuote(query);
+            // room for su's quoting on top
+            int argLength = arg.length() + 8;
+            if (!args.isEmpty() && length + argLength > MAX_SCRIPT_LENGTH) {
+                runHelperOnce(remotePath, verb, args, onAnswer);
+                args.clear();
+                length = 0;
+            }
+            args.add(arg);
+            length += argLength;
+        }
+        runHelperOnce(remotePath, verb, args, onAnswer);
+        return true;
+    }
+
+    private void runHelperOnce(String remotePath, String verb, List<String> args, BiConsumer<String, String> onAnswer) {
+        String[] templateArgs = new String[2 + args.size()];
+        templateArgs[0] = remotePath;
+        templateArgs[1] = verb;
+        for (int i = 0; i < args.size(); i++) {
+            templateArgs[2 + i] = args.get(i);
+        }
+        executeLines(HELPER, verb, args.size(), HELPER.build(isSU(), templateArgs), 10_000, line -> {
+            String[] record = DeviceHelper.parseRecord(line);
+            if (record != null) {
+                onAnswer.accept(record[1], record[2]);
+            }
+        });
+    }
+
+    // Pushes the helper unless an intact copy is already on the device, checked once per device and session.
+    // Returns its remote path or null if it couldn't be put there
+    private String ensureHelper() {
+        synchronized (helperLock) {
+            if (helper == null) {
+                // a missing resource is reported once, not on every query
+                if (helperMissing) {
+                    return null;
+                }
+                helper = DeviceHelper.load();
+                if (helper == null) {
+                    helperMissing = true;
+                    return null;
+                }
+            }
+            String remotePath = helper.getRemotePath();
+            String target = serial == null ? "" : serial;
+            if (target.equals(helperSerial)) {
+                return remotePath;
+            }
+            int length = helper.getScript().length;
+            DirEntry existing = stat(remotePath);
+            if (existing == null || existing.size != length) {
+                Path local = null;
+                try {
+                    local = Files.createTempDirectory("debloater").resolve(helper.getFileName());
+                    Files.write(local, helper.getScript());
+                    System.out.println(push(local.toString(), remotePath));
+                } catch (IOException e) {
+                    System.err.println("Failed to write the device helper: " + e.getMessage());
+                    return null;
+                } finally {
+                    if (local != null) {
+                        deletePartial(local);
+                        deletePartial(local.getParent());
+                    }
+                }
+                // a failed or cut off push must not be mistaken for the helper later
+                existing = stat(remotePath);
+                if (existing == null || existing.size != length) {
+                    execute(RM, RM.build(isSU(), remotePath), 4000);
+                    files.invalidate(remotePath);
+                    return null;
+                }
+            }
+            helperSerial = target;
+            return remotePath;
+        }
     }
 
     public long getAvailableSpaceInBytes(String phoneDir) {
         String[] command = DISK_FREE.build(phoneDir);
-        String dfResult = executeCommandWithTimeout(command, 10_000);
+        String dfResult = execute(DISK_FREE, command, 10_000);
         if (dfResult.startsWith("df:") || dfResult.startsWith("/system/bin/sh:")) {
             return -1;
         }
@@ -532,7 +2056,7 @@ public class Commands {
 
     public List<String> dmctlListDevices() {
         String[] command = DMCTL.build(isSU(), "list", "devices");
-        String devicesResult = executeCommandWithTimeout(command, 10_000);
+        String devicesResult = execute(DMCTL, command, 10_000);
         List<String> devices = splitOutputLines(devicesResult);
         return devices.stream()
                 .skip(1)
@@ -543,7 +2067,7 @@ public class Commands {
 
     public DmctlTable dmctlTable(String device) {
         String[] command = DMCTL.build(isSU(), "table", device);
-        String tableResult = executeCommandWithTimeout(command, 10_000);
+        String tableResult = execute(DMCTL, command, 10_000);
         List<String> lines = splitOutputLines(tableResult);
         if (lines.size() < 2) {
             return null;
@@ -557,7 +2081,7 @@ public class Commands {
 
     public String dmctlGetPath(String device) {
         String[] command = DMCTL.build(isSU(), "getpath", device);
-        return executeCommandWithTimeout(command, 10_000);
+        return execute(DMCTL, command, 10_000);
     }
 
     public String dmctlReplace(String device, DmctlTable table) {
@@ -569,13 +2093,13 @@ public class Commands {
                 String.valueOf(table.getOffset())
         );
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 10_000);
+        return execute(DMCTL, command, 10_000);
     }
 
     public String tune2fsList(String blockPath) {
         String[] command = TUNE2FS.build(isSU(), blockPath);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 10_000);
+        return execute(TUNE2FS, command, 10_000);
     }
 
     public String pmGrantPermission(String permission, String packageName, boolean force) {
@@ -598,15 +2122,23 @@ public class Commands {
                 PM_CHANGE_PERM.buildSUWithSUArgs(Arrays.asList("-l", "1000"), action, packageName, permission) :
                 PM_CHANGE_PERM.build(action, packageName, permission);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 10_000);
+        return execute(PM_CHANGE_PERM, command, 10_000);
     }
 
     public String rebootRecovery() {
-        return executeCommandWithTimeout(REBOOT.build("recovery"), 10_000);
+        closeSession();
+        String output = executeCommandWithTimeout(REBOOT.build("recovery"), 10_000);
+        invalidateAfter(REBOOT);
+        awaitDisconnect();
+        return output;
     }
 
     public String rebootFastboot() {
-        return executeCommandWithTimeout(REBOOT.build("bootloader"), 10_000);
+        closeSession();
+        String output = executeCommandWithTimeout(REBOOT.build("bootloader"), 10_000);
+        invalidateAfter(REBOOT);
+        awaitDisconnect();
+        return output;
     }
 
     public String rebootFromFastboot() {
@@ -614,78 +2146,67 @@ public class Commands {
     }
 
     public String reboot() {
-        return executeCommandWithTimeout(REBOOT.build(), 10_000);
+        closeSession();
+        String output = executeCommandWithTimeout(REBOOT.build(), 10_000);
+        invalidateAfter(REBOOT);
+        awaitDisconnect();
+        return output;
+    }
+
+    // The whole log buffer, captured on this side instead of written to the device and pulled
+    public OutputBuffer captureLogs() {
+        return capture(SHELL_LOGCAT, SHELL_LOGCAT.build("-d"), 10_000);
     }
 
     public String dumpLogs(String phonePath) {
         String[] command = SHELL_LOGCAT.build("-d", "-f", phonePath);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 3000);
+        return execute(SHELL_LOGCAT, command, 10_000);
     }
 
     public List<MountEntry> getSystemProcMounts() {
         String[] command = GET_SYSTEM_PROC_MOUNTS.build();
-        String mountsOutput = executeCommandWithTimeout(command, 3000);
-        List<String> lines =  splitOutputLines(mountsOutput);
         List<MountEntry> mounts = new ArrayList<>();
-        for (String line : lines) {
+        executeLines(GET_SYSTEM_PROC_MOUNTS, command, 3000, line -> {
             String[] parts = line.split(" ");
             if (parts.length < 4) {
-                continue;
+                return;
             }
-            MountEntry entry = new MountEntry(parts[0], parts[1], parts[2], parts[3]);
-            mounts.add(entry);
-        }
+            mounts.add(new MountEntry(parts[0], parts[1], parts[2], parts[3]));
+        });
         return mounts;
     }
 
     public String dd(String input, String output) {
         String[] command = DD.buildSU("if=" + input, "of=" + output);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 10_000);
+        String ddOutput = executeCommandWithTimeout(command, TRANSFER_TIMEOUT_MS);
+        invalidateAfter(DD);
+        files.invalidate(output);
+        return ddOutput;
     }
 
     public String flash(String partition, String pcPath) {
         String[] command = FLASH.build(partition, pcPath);
         System.out.println(Arrays.toString(command));
-        return executeCommandWithTimeout(command, 10_000);
+        return executeTransfer(FLASH, command, 10_000, localFileSize(pcPath));
     }
 
+    // Returns null if the package wasn't found or the dump couldn't be parsed
     public List<GrantablePermission> getGrantablePermissions(String packageName) {
         String[] command = DUMPSYS.build("package", packageName);
-        // No need to wait because it's a dump
-        String dumpsysResult = executeCommandWithTimeout(command, 100);
-        int fail = dumpsysResult.lastIndexOf("Unable to find package:");
-        if (fail != -1) {
-            return null;
-        }
-        int packagesIndex = dumpsysResult.indexOf("Packages:");
-        if (packagesIndex == -1) {
-            return null;
-        }
-        dumpsysResult = dumpsysResult.substring(packagesIndex);
-        List<String> lines = splitOutputLines(dumpsysResult);
-        boolean parsingPerms = false;
-        List<GrantablePermission> permissions = new ArrayList<>();
-        for (String line : lines) {
-            if (!parsingPerms) {
-                if (line.contains("runtime permissions:")) {
-                    parsingPerms = true;
-                }
-                continue;
-            }
-            line = line.trim();
-            final int[] indices = Utilities.indicesOf(line, ":", "granted=", ",");
-            if (indices == null) {
-                break;
-            }
-
-            int colon = indices[0], grantedKey = indices[1], comma = indices[2];
+        PermissionDumpParser parser = new PermissionDumpParser();
+        executeLines(DUMPSYS, "package", 1, command, 10_000, parser);
+        return parser.getPermissions();
+    }
 
-            String state = line.substring(grantedKey + "granted=".length(), comma);
-            String permName = line.substring(0, colon);
-            permissions.add(new GrantablePermission(permName, Boolean.parseBoolean(state)));
-        }
+    public CompletableFuture<List<GrantablePermission>> getGrantablePermissionsAsync(String packageName) {
+        String[] command = DUMPSYS.build("package", packageName);
+        PermissionDumpParser parser = new PermissionDumpParser();
+        CompletableFuture<Void> dump = executeLinesAsync(command, 10_000, parser);
+        CompletableFuture<List<GrantablePermission>> permissions = dump.thenApply(ignored -> parser.getPermissions());
+        // cancelling the permissions stops the dump, a dependent future doesn't cancel what it depends on
+        permissions.whenComplete((result, error) -> dump.cancel(true));
         return permissions;
     }
 
@@ -716,14 +2237,6 @@ public class Commands {
         }
         return lines;
     }
-
-    private static String getPairValue(String pair) {
-        int eq = pair.indexOf('=');
-        if (eq == -1 || eq == pair.length() - 1) {
-            return "";
-        }
-        return pair.substring(eq + 1);
-    }
 }
 
 enum PackageType {
@@ -738,17 +2251,86 @@ enum PackageType {
     }
 }
 
+// A command started on the device or locally, either way its combined output is read from getOutput
+interface RunningCommand {
+    InputStream getOutput();
+
+    // Stops the command, a blocked read of its output fails or returns EOF
+    void kill();
+
+    static RunningCommand of(Process proc) {
+        return new RunningCommand() {
+            @Override
+            public InputStream getOutput() {
+                return proc.getInputStream();
+            }
+
+            @Override
+            public void kill() {
+                Utilities.destroyProcessTree(proc);
+            }
+        };
+    }
+}
+
 enum PrivilegeType {
     ADB_ROOT, SU
 }
 
+// Compiled once: components are copied as a block and placeholders are filled by index,
+// so building a command allocates only the resulting array (plus the inner command line under su)
 class CommandTemplate {
+    private static final String[] NO_ARGS = new String[0];
+
     private final String[] execTerms;
     private final String[] components; // Empty components are placeholders for arguments
+    private final int[] slots; // Indexes of the placeholders in components
+    private final boolean isShell;
+    private final String key;
 
     public CommandTemplate(String[] execTerms, String... components) {
         this.execTerms = execTerms;
         this.components = components;
+        int placeholders = 0;
+        for (String component : components) {
+            if (component.isEmpty()) {
+                placeholders++;
+            }
+        }
+        this.slots = new int[placeholders];
+        for (int i = 0, s = 0; i < components.length; i++) {
+            if (components[i].isEmpty()) {
+                slots[s++] = i;
+            }
+        }
+        this.isShell = components.length > 0 && components[0].equals("shell");
+        this.key = buildKey(components);
+    }
+
+    // Identifies the template regardless of where adb is, placeholders show as _
+    public String key() {
+        return key;
+    }
+
+    // The workload a command built from this template belongs to: shape, plus su if it runs through su,
+    // which costs differently (and may wait for a grant) than the same command without it
+    public String workloadShape(String shape, String[] command) {
+        boolean su = isShell && command.length > execTerms.length + 1 && command[execTerms.length + 1].equals("su");
+        if (!su) {
+            return shape;
+        }
+        return shape.isEmpty() ? "su" : shape + " su";
+    }
+
+    private static String buildKey(String[] components) {
+        StringBuilder key = new StringBuilder();
+        for (String component : components) {
+            if (key.length() > 0) {
+                key.append(' ');
+            }
+            key.append(component.isEmpty() ? "_" : component);
+        }
+        return key.toString();
     }
 
     public String[] build(String... args) {
@@ -760,52 +2342,108 @@ class CommandTemplate {
     }
 
     public String[] build(boolean su, String... args) {
-        return build(su, Collections.emptyList(), args);
+        return build(su, NO_ARGS, args);
     }
 
     public String[] buildSUWithSUArgs(List<String> suArgs, String... args) {
-        return build(true, suArgs, args);
+        return build(true, suArgs.toArray(NO_ARGS), args);
     }
 
     public String[] build(boolean su, List<String> suArgs, String... args) {
-        List<String> command = new ArrayList<>(execTerms.length + components.length + 2);
-        List<String> filledArgs = new ArrayList<>();
-
-        command.addAll(Arrays.asList(execTerms));
-        boolean isShell = components.length > 0 && components[0].equals("shell");
-        boolean wrapInner = su && isShell;
-        int startIndex = 0;
-        if (wrapInner) {
-            command.add("shell");
-            command.add("su");
-            command.addAll(suArgs);
-            command.add("-c");
-            startIndex = 1;
-        }
-
-        int a = 0;
-        for (int i = startIndex; i < components.length; i++) {
-            String component = components[i];
-            if (!component.isEmpty()) {
-                filledArgs.add(component);
-                continue;
+        return build(su, suArgs.toArray(NO_ARGS), args);
+    }
+
+    private String[] build(boolean su, String[] suArgs, String[] args) {
+        if (args.length < slots.length) {
+            Utilities.errExit("Command structure error - template arguments not satisfied: " + Arrays.toString(components));
+        }
+        if (su && isShell) {
+            return buildSUShell(suArgs, args);
+        }
+        int extra = args.length - slots.length;
+        String[] command = new String[execTerms.length + components.length + extra];
+        System.arraycopy(execTerms, 0, command, 0, execTerms.length);
+        System.arraycopy(components, 0, command, execTerms.length, components.length);
+        for (int s = 0; s < slots.length; s++) {
+            command[execTerms.length + slots[s]] = args[s];
+        }
+        // Append additional remaining arguments
+        System.arraycopy(args, slots.length, command, execTerms.length + components.length, extra);
+        return command;
+    }
+
+    // adb shell su [suArgs] -c <inner command line>
+    // adb joins its shell arguments with spaces, so the device shell parses the line twice:
+    // once for su's own arguments and once more when su runs the inner command.
+    // Arguments are quoted inside the inner line and the whole line is quoted as su's -c argument, both in one pass.
+    // Literal components stay unquoted inside so operators like && and | keep working
+    private String[] buildSUShell(String[] suArgs, String[] args) {
+        StringBuilder quoted = new StringBuilder(64);
+        quoted.append('\'');
+        int s = 0;
+        for (int i = 1; i < components.length; i++) {
+            if (i > 1) {
+                quoted.append(' ');
             }
-            if (a == args.length) {
-                Utilities.errExit("Command structure error - template arguments not satisfied: " + Arrays.toString(components));
+            if (s < slots.length && slots[s] == i) {
+                appendInnerArg(quoted, args[s++]);
+            } else {
+                appendQuotedChars(quoted, components[i]);
             }
-            String arg = args[a++];
-            filledArgs.add(arg);
         }
-        // Append additional remaining arguments
-        filledArgs.addAll(Arrays.asList(args).subList(a, args.length));
-        if (wrapInner) {
-            String innerCommand = String.join(" ", filledArgs);
-            command.add(innerCommand);
-        } else {
-            command.addAll(filledArgs);
+        for (int a = slots.length; a < args.length; a++) {
+            if (quoted.length() > 1) {
+                quoted.append(' ');
+            }
+            appendInnerArg(quoted, args[a]);
+        }
+        quoted.append('\'');
+
+        String[] command = new String[execTerms.length + 4 + suArgs.length];
+        System.arraycopy(execTerms, 0, command, 0, execTerms.length);
+        int i = execTerms.length;
+        command[i++] = "shell";
+        command[i++] = "su";
+        System.arraycopy(suArgs, 0, command, i, suArgs.length);
+        i += suArgs.length;
+        command[i++] = "-c";
+        command[i] = quoted.toString();
+        return command;
+    }
+
+    // Quotes arg for the inner shell while already inside the outer single quotes
+    private static void appendInnerArg(StringBuilder out, String arg) {
+        if (!Utilities.needsShellQuoting(arg)) {
+            out.append(arg);
+            return;
+        }
+        appendQuotedChar(out, '\'');
+        for (int i = 0; i < arg.length(); i++) {
+            char c = arg.charAt(i);
+            if (c == '\'') {
+                appendQuotedChar(out, '\'');
+                appendQuotedChar(out, '\\');
+                appendQuotedChar(out, '\'');
+                appendQuotedChar(out, '\'');
+            } else {
+                out.append(c);
+            }
         }
+        appendQuotedChar(out, '\'');
+    }
+
+    private static void appendQuotedChars(StringBuilder out, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            appendQuotedChar(out, str.charAt(i));
+        }
+    }
 
-        return command.toArray(new String[0]);
+    private static void appendQuotedChar(StringBuilder out, char c) {
+        if (c == '\'') {
+            out.append("'\\''");
+        } else {
+            out.append(c);
+        }
     }
 }
 
@@ -902,30 +2540,132 @@ class MountEntry {
 }
 
 class DirEntry {
-    // drwxrwx--- 2 root everybody 3488 2025-07-25 09:17 Alarms -> somewhere
-    public String date, time, name, pointsTo;
+    static final int S_IFMT = 0170000, S_IFDIR = 0040000, S_IFREG = 0100000, S_IFLNK = 0120000;
+    private static final Pattern LS_DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
 
-    public DirEntry(String date, String time, String name, String pointsTo) {
-        this.date = date;
-        this.time = time;
+    public String name;
+    public int mode; // st_mode, file type and permission bits
+    public long size;
+    public long mtime; // seconds since the epoch
+    public String pointsTo; // symlink target, only known when parsed from ls
+
+    public DirEntry(String name, int mode, long size, long mtime) {
         this.name = name;
-        this.pointsTo = pointsTo;
+        this.mode = mode;
+        this.size = size;
+        this.mtime = mtime;
+    }
+
+    public boolean isDirectory() {
+        return (mode & S_IFMT) == S_IFDIR;
+    }
+
+    public boolean isFile() {
+        return (mode & S_IFMT) == S_IFREG;
+    }
+
+    public boolean isSymlink() {
+        return (mode & S_IFMT) == S_IFLNK;
     }
 
+    // drwxrwx--- 2 root everybody 3488 2025-07-25 09:17 Alarms
+    // lrwxrwxrwx 1 root root 11 2025-07-25 09:17 my link -> somewhere
+    // The name is everything after the time so it may contain spaces, the time is the device's local time
     public static DirEntry fromLine(String line) {
-        List<String> parts = Utilities.splitBy(line, ' ');
-       int size = parts.size();
-       if (size < 8) {
-           return null;
-       }
-       String date = parts.get(5);
-       String time = parts.get(6);
-       String name = parts.get(7);
-       String pointsTo = null;
-       if (parts.get(size-2).equals("->")) {
-           pointsTo = parts.get(size-1);
-       }
-       return new DirEntry(date, time, name, pointsTo);
+        List<int[]> tokens = new ArrayList<>();
+        int i = 0, len = line.length();
+        while (i < len) {
+            while (i < len && line.charAt(i) == ' ') {
+                i++;
+            }
+            int start = i;
+            while (i < len && line.charAt(i) != ' ') {
+                i++;
+            }
+            if (start < i) {
+                tokens.add(new int[]{start, i});
+            }
+        }
+        // device nodes print "major, minor" instead of a size so the date's position varies
+        int date = -1;
+        for (int t = 4; t < tokens.size() - 2; t++) {
+            if (LS_DATE.matcher(token(line, tokens.get(t))).matches()) {
+                date = t;
+                break;
+            }
+        }
+        if (date == -1 || token(line, tokens.get(0)).length() < 10) {
+            return null;
+        }
+        String name = line.substring(tokens.get(date + 2)[0]);
+        String pointsTo = null;
+        int mode = parseMode(token(line, tokens.get(0)));
+        if ((mode & S_IFMT) == S_IFLNK) {
+            int arrow = name.lastIndexOf(" -> ");
+            if (arrow != -1) {
+                pointsTo = name.substring(arrow + 4);
+                name = name.substring(0, arrow);
+            }
+        }
+        long size;
+        try {
+            size = Long.parseLong(token(line, tokens.get(date - 1)));
+        } catch (NumberFormatException e) {
+            size = 0;
+        }
+        long mtime;
+        try {
+            String dateTime = token(line, tokens.get(date)) + "T" + token(line, tokens.get(date + 1));
+            mtime = LocalDateTime.parse(dateTime).atZone(ZoneId.systemDefault()).toEpochSecond();
+        } catch (DateTimeParseException e) {
+            mtime = 0;
+        }
+        DirEntry entry = new DirEntry(name, mode, size, mtime);
+        entry.pointsTo = pointsTo;
+        return entry;
+    }
+
+    private static String token(String line, int[] bounds) {
+        return line.substring(bounds[0], bounds[1]);
+    }
+
+    // "drwxr-x--x" to st_mode bits, setuid/setgid/sticky are ignored
+    static int parseMode(String perms) {
+        int mode;
+        switch (perms.charAt(0)) {
+            case 'd':
+                mode = S_IFDIR;
+                break;
+            case 'l':
+                mode = S_IFLNK;
+                break;
+            case 'c':
+                mode = 0020000;
+                break;
+            case 'b':
+                mode = 0060000;
+                break;
+            case 'p':
+                mode = 0010000;
+                break;
+            case 's':
+                mode = 0140000;
+                break;
+            default:
+                mode = S_IFREG;
+        }
+        for (int i = 1; i <= 9; i++) {
+            char c = perms.charAt(i);
+            if (c != '-' && c != 'S' && c != 'T') {
+                mode |= 1 << (9 - i);
+            }
+        }
+        return mode;
+    }
+
+    @Override
+    public String toString() {
+        return name + (pointsTo == null ? "" : " -> " + pointsTo);
     }
 }
 
@@ -943,3 +2683,54 @@ class GrantablePermission {
         return "{" + name + ", " + granted + "}";
     }
 }
+
+// Consumes 'dumpsys package <name>' line by line, only the runtime permissions section is kept
+class PermissionDumpParser implements Consumer<String> {
+    private final List<GrantablePermission> permissions = new ArrayList<>();
+    private boolean packageMissing, inPackages, parsingPerms, done;
+
+    @Override
+    public void accept(String line) {
+        if (line.contains("Unable to find package:")) {
+            packageMissing = true;
+            return;
+        }
+        if (done) {
+            return;
+        }
+        if (!inPackages) {
+            inPackages = line.contains("Packages:");
+            if (!inPackages) {
+                return;
+            }
+        }
+        if (!parsingPerms) {
+            if (line.contains("runtime permissions:")) {
+                parsingPerms = true;
+            }
+            return;
+        }
+        if (line.isEmpty()) {
+            return;
+        }
+        line = line.trim();
+        final int[] indices = Utilities.indicesOf(line, ":", "granted=", ",");
+        if (indices == null) {
+            done = true;
+            return;
+        }
+
+        int colon = indices[0], grantedKey = indices[1], comma = indices[2];
+
+        String state = line.substring(grantedKey + "granted=".length(), comma);
+        String permName = line.substring(0, colon);
+        permissions.add(new GrantablePermission(permName, Boolean.parseBoolean(state)));
+    }
+
+    public List<GrantablePermission> getPermissions() {
+        if (packageMissing || !inPackages) {
+            return null;
+        }
+        return permissions;
+    }
+}
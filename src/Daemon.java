@@ -0,0 +1,307 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.List;
+
+// Keeps one JVM and its Commands (adb connection, device tracker, shell session, caches, privileges) alive between runs.
+// While it runs, 'run.sh <action>' started from the same working directory forwards its arguments and stdin to it,
+// the action runs there like CLI.start would and output and exit status are streamed back.
+// Listens on a loopback TCP port (Unix sockets need JDK 16). A client has to present the token from the record file,
+// which only the owner can read. The record is tab separated: port, token, working directory.
+// Requests run one at a time, they share System.out and the device
+class Daemon {
+    private static final String RECORD_FILE = "daemon.txt";
+    public static final String START = "daemon", STOP = "stop-daemon";
+    private static final byte STDOUT = 'O', STDERR = 'E', EXIT = 'X';
+    private static final int CONNECT_TIMEOUT_MS = 500;
+    private static final int MAX_ARGS = 256;
+
+    private static volatile boolean serving = false;
+
+    // Thrown in place of System.exit while the daemon serves, it only ends the request
+    static class Exit extends Error {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        Exit(int status) {
+            super("exit " + status, null, false, false);
+            this.status = status;
+        }
+    }
+
+    // Every exit of the CLI goes through here
+    public static void exit(int status) {
+        if (serving) {
+            throw new Exit(status);
+        }
+        System.exit(status);
+    }
+
+    public static void serve(Commands commands, int port) {
+        ServerSocket server;
+        try {
+            server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            Utilities.errExit("Failed to listen on port " + port + ": " + e.getMessage());
+            return;
+        }
+        Path recordPath = Utilities.pathNextToExecutable(RECORD_FILE);
+        String token = newToken();
+        String record = server.getLocalPort() + "\t" + token + "\t" + System.getProperty("user.dir");
+        if (!saveRecord(recordPath, record)) {
+            Utilities.errExit("Failed to save " + recordPath);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteRecord(recordPath, token)));
+        System.out.println("Daemon listening on 127.0.0.1:" + server.getLocalPort() + ", stop it with: " + STOP);
+
+        PrintStream out = System.out, err = System.err;
+        InputStream in = System.in;
+        serving = true;
+        boolean running = true;
+        while (running) {
+            try (Socket client = server.accept()) {
+                running = handle(commands, client, token);
+            } catch (IOException e) {
+                err.println("Daemon request failed: " + e.getMessage());
+            } finally {
+                System.setOut(out);
+                System.setErr(err);
+                System.setIn(in);
+            }
+        }
+        serving = false;
+        System.out.println("Daemon stopped");
+        System.exit(0);
+    }
+
+    // Returns false once the daemon was asked to stop
+    private static boolean handle(Commands commands, Socket client, String token) throws IOException {
+        client.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+        if (!in.readUTF().equals(token)) {
+            return true;
+        }
+        int argCount = in.readInt();
+        if (argCount <= 0 || argCount > MAX_ARGS) {
+            return true;
+        }
+        String[] args = new String[argCount];
+        for (int i = 0; i < argCount; i++) {
+            args[i] = in.readUTF();
+        }
+        if (args[0].equals(STOP)) {
+            writeExit(out, 0);
+            return false;
+        }
+
+        // the rest of what the client sends is its stdin
+        PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameStream(out, STDOUT)), true);
+        PrintStream stderr = new PrintStream(new BufferedOutputStream(new FrameStream(out, STDERR)), true);
+        System.setOut(stdout);
+        System.setErr(stderr);
+        System.setIn(in);
+        int status = 0;
+        try {
+            CLI.start(commands, args);
+        } catch (Throwable t) {
+            Exit exit = findExit(t);
+            if (exit != null) {
+                status = exit.status;
+            } else {
+                t.printStackTrace();
+                status = 1;
+            }
+        }
+        stdout.flush();
+        stderr.flush();
+        writeExit(out, status);
+        return true;
+    }
+
+    // An exit from a parallel task arrives wrapped
+    private static Exit findExit(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof Exit) {
+                return (Exit) t;
+            }
+        }
+        return null;
+    }
+
+    // Output frames are a type byte, the length and the bytes, the exit frame carries the status in place of the length
+    private static void writeFrame(DataOutputStream out, byte type, byte[] bytes, int offset, int length) throws IOException {
+        synchronized (out) {
+            out.writeByte(type);
+            out.writeInt(length);
+            out.write(bytes, offset, length);
+            out.flush();
+        }
+    }
+
+    private static void writeExit(DataOutputStream out, int status) throws IOException {
+        synchronized (out) {
+            out.writeByte(EXIT);
+            out.writeInt(status);
+            out.flush();
+        }
+    }
+
+    private static class FrameStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+
+        FrameStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                writeFrame(out, type, b, off, len);
+            }
+        }
+    }
+
+    // Runs the action in a daemon started from this working directory and returns its exit status,
+    // -1 if there's no such daemon and the action has to run here
+    public static int forward(String[] args) {
+        Path recordPath = Utilities.pathNextToExecutable(RECORD_FILE);
+        if (!Files.exists(recordPath)) {
+            return -1;
+        }
+        String[] record;
+        try {
+            List<String> lines = Files.readAllLines(recordPath, StandardCharsets.UTF_8);
+            record = lines.isEmpty() ? new String[0] : lines.get(0).split("\t", 3);
+        } catch (IOException e) {
+            return -1;
+        }
+        // relative paths in the arguments are resolved against the daemon's working directory
+        if (record.length != 3 || !record[2].equals(System.getProperty("user.dir"))) {
+            return -1;
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(record[0])), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(record[1]);
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+        } catch (IOException | NumberFormatException e) {
+            // a daemon that was killed leaves its record behind
+            closeQuietly(socket);
+            return -1;
+        }
+        Thread stdinPump = new Thread(() -> pumpStdin(socket), "daemon-stdin");
+        stdinPump.setDaemon(true);
+        stdinPump.start();
+        try {
+            return readFrames(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+        } catch (IOException e) {
+            System.err.println("Lost connection to the daemon: " + e.getMessage());
+            return 1;
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private static int readFrames(DataInputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (true) {
+            byte type = in.readByte();
+            int value = in.readInt();
+            if (type == EXIT) {
+                System.out.flush();
+                return value;
+            }
+            PrintStream target = type == STDERR ? System.err : System.out;
+            while (value > 0) {
+                int read = in.read(buffer, 0, Math.min(buffer.length, value));
+                if (read < 0) {
+                    throw new EOFException("output cut off");
+                }
+                target.write(buffer, 0, read);
+                value -= read;
+            }
+            target.flush();
+        }
+    }
+
+    private static void pumpStdin(Socket socket) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = System.in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+            socket.shutdownOutput();
+        } catch (IOException ignored) {
+            // the request ended before stdin did
+        }
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder hex = new StringBuilder(32);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    // The file is made owner-only before the token goes in
+    private static boolean saveRecord(Path path, String record) {
+        try {
+            Files.deleteIfExists(path);
+            Files.createFile(path);
+            try {
+                Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) {
+                // not a POSIX file system, Windows keeps files in the user's profile private anyway
+            }
+            Files.write(path, record.getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to save daemon record: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Leaves a record another daemon replaced ours with
+    private static void deleteRecord(Path path, String token) {
+        try {
+            if (Files.exists(path) && new String(Files.readAllBytes(path), StandardCharsets.UTF_8).contains(token)) {
+                Files.delete(path);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Append-only record of a debloat run, written while it runs so an interrupted run (cable pulled, timeout, Ctrl-C)
+// can be resumed with 'debloat --resume <journal>'. The packages about to be uninstalled are recorded and synced
+// before anything is uninstalled, each result is written as it arrives.
+// Results reach the OS right away and survive the process dying, they're synced to the disk in batches.
+// A result lost with the OS only means a resumed run tries that package again, uninstalling is idempotent.
+// Lines are tab separated: event, package, detail. Each run starts with "run", the device's serial and the mode
+class DebloatJournal implements AutoCloseable {
+    public static final String EXTENSION = ".journal";
+    private static final String RUN = "run", PLANNED = "planned", UNINSTALLED = "uninstalled", FAILED = "failed";
+    private static final int SYNC_RECORDS = 16;
+    private static final long SYNC_INTERVAL_MS = 1000;
+
+    private final FileChannel channel;
+    private int unsynced;
+    private long lastSync = System.currentTimeMillis();
+
+    private DebloatJournal(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    // Creates the journal or appends to an existing one
+    public static DebloatJournal open(Path path) throws IOException {
+        return new DebloatJournal(FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    // Synced before it returns, like plan
+    public synchronized void begin(String serial, String mode) throws IOException {
+        write(RUN, serial, mode);
+        sync();
+    }
+
+    // Synced before it returns, nothing may be uninstalled before its intent is on the disk
+    public synchronized void plan(List<String> pkgNames) throws IOException {
+        for (String pkgName : pkgNames) {
+            write(PLANNED, pkgName, "");
+        }
+        sync();
+    }
+
+    public synchronized void result(String pkgName, String output) throws IOException {
+        write(output.startsWith("Success") ? UNINSTALLED : FAILED, pkgName, output);
+        if (unsynced >= SYNC_RECORDS || System.currentTimeMillis() - lastSync >= SYNC_INTERVAL_MS) {
+            sync();
+        }
+    }
+
+    private void write(String event, String pkgName, String detail) throws IOException {
+        // pm's output may span lines
+        String line = event + '\t' + pkgName + '\t' + detail.replaceAll("\\s+", " ").trim() + '\n';
+        ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        unsynced++;
+    }
+
+    public synchronized void sync() throws IOException {
+        if (unsynced > 0) {
+            channel.force(false);
+            unsynced = 0;
+        }
+        lastSync = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // What a journal says about the runs recorded in it
+    static class Replay {
+        public String serial = "", mode = "";
+        public final Set<String> planned = new LinkedHashSet<>();
+        public final Set<String> uninstalled = new LinkedHashSet<>();
+
+        // Planned packages without a successful uninstall, in the order they were planned
+        public List<String> remaining() {
+            List<String> remaining = new ArrayList<>();
+            for (String pkgName : planned) {
+                if (!uninstalled.contains(pkgName)) {
+                    remaining.add(pkgName);
+                }
+            }
+            return remaining;
+        }
+    }
+
+    // Returns null if the journal can't be read or has no run in it. A line cut off by a crash is skipped
+    public static Replay load(Path path) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Failed to load journal: " + e.getMessage());
+            return null;
+        }
+        Replay replay = null;
+        for (String line : lines) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 3) {
+                continue;
+            }
+            if (fields[0].equals(RUN)) {
+                if (replay == null) {
+                    replay = new Replay();
+                }
+                replay.serial = fields[1];
+                replay.mode = fields[2];
+            } else if (replay == null) {
+                continue;
+            }
+            switch (fields[0]) {
+                case PLANNED:
+                    replay.planned.add(fields[1]);
+                    break;
+                case UNINSTALLED:
+                    replay.uninstalled.add(fields[1]);
+                    break;
+            }
+        }
+        return replay;
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+// What an action's preflight knows about the device. The probes don't depend on each other and run concurrently,
+// so a preflight takes as long as its slowest probe instead of the sum of all of them.
+// Only requested probes run, see Preflight. Fields of the others stay null (-1 for the free space)
+class DeviceContext {
+    public final PrivilegeType privilege;
+    public final DeviceProps props;
+    public final Set<String> packages;
+    public final String packagePath; // 'pm path' output of the requested package
+    public final long freeSpace; // bytes available in the requested directory, -1 if unknown
+    public final List<MountEntry> mounts;
+
+    private DeviceContext(Preflight preflight) {
+        privilege = preflight.commands.privilege;
+        props = join(preflight.props);
+        packages = join(preflight.packages);
+        packagePath = join(preflight.packagePath);
+        Long space = join(preflight.freeSpace);
+        freeSpace = space == null ? -1 : space;
+        mounts = join(preflight.mounts);
+    }
+
+    private static <T> T join(CompletableFuture<T> probe) {
+        return probe == null ? null : probe.join();
+    }
+
+    // Collects the probes an action needs, run() starts them all at once and waits for them
+    static class Preflight {
+        private final Commands commands;
+        private boolean privileged, withProps, withPackages, withMounts;
+        private String pathOf, spaceOf;
+        private CompletableFuture<DeviceProps> props;
+        private CompletableFuture<Set<String>> packages;
+        private CompletableFuture<String> packagePath;
+        private CompletableFuture<Long> freeSpace;
+        private CompletableFuture<List<MountEntry>> mounts;
+
+        Preflight(Commands commands) {
+            this.commands = commands;
+        }
+
+        // Exits if there's neither adb root nor su, like Commands.ensurePrivileged
+        public Preflight privilege() {
+            privileged = true;
+            return this;
+        }
+
+        public Preflight props() {
+            withProps = true;
+            return this;
+        }
+
+        public Preflight packages() {
+            withPackages = true;
+            return this;
+        }
+
+        public Preflight packagePath(String pkgName) {
+            pathOf = pkgName;
+            return this;
+        }
+
+        public Preflight freeSpace(String phoneDir) {
+            spaceOf = phoneDir;
+            return this;
+        }
+
+        public Preflight mounts() {
+            withMounts = true;
+            return this;
+        }
+
+        public DeviceContext run() {
+            List<CompletableFuture<?>> probes = new ArrayList<>();
+            // confirming a recorded privilege is a single 'id', detecting one may restart adbd and waits for the others
+            CompletableFuture<Boolean> confirmed = privileged ? start(probes, commands::confirmRecordedPrivilege) : null;
+            props = withProps ? start(probes, commands::getDeviceProps) : null;
+            packages = withPackages ? start(probes, () -> commands.getPackageIndex().names(PackageType.ALL)) : null;
+            packagePath = pathOf != null ? start(probes, () -> commands.getPackagePath(pathOf)) : null;
+            freeSpace = spaceOf != null ? start(probes, () -> commands.getAvailableSpaceInBytes(spaceOf)) : null;
+            mounts = withMounts ? start(probes, commands::getSystemProcMounts) : null;
+            CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+            if (confirmed != null && !confirmed.join()) {
+                commands.ensurePrivileged();
+            }
+            return new DeviceContext(this);
+        }
+
+        private <T> CompletableFuture<T> start(List<CompletableFuture<?>> probes, Supplier<T> probe) {
+            CompletableFuture<T> future = commands.getEngine().submit(probe);
+            probes.add(future);
+            return future;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// The device-helper.sh resource, pushed to the device once so many small queries cost one 'adb shell' instead of one each.
+// The remote file name carries a hash of the script, an updated helper never runs a stale copy left on the device
+// and an unchanged one is never pushed again.
+// Answers are "<tag>\t<query>\t<value>" lines, see the script for the verbs
+class DeviceHelper {
+    private static final String RESOURCE = "/device-helper.sh";
+    private static final String REMOTE_DIR = "/data/local/tmp/";
+    private static final int HASH_CHARS = 12;
+
+    public static final String PATHS = "paths", EXISTS = "exists", SIZES = "sizes";
+
+    private final byte[] script;
+    private final String fileName;
+
+    private DeviceHelper(byte[] script, String fileName) {
+        this.script = script;
+        this.fileName = fileName;
+    }
+
+    // Returns null if the script isn't on the classpath, bulk queries then run one command per item
+    public static DeviceHelper load() {
+        URL url = DeviceHelper.class.getResource(RESOURCE);
+        if (url == null) {
+            System.err.println("Couldn't find " + RESOURCE + " on the classpath, bulk queries run one command per item");
+            return null;
+        }
+        byte[] script;
+        try (InputStream in = url.openStream()) {
+            script = Utilities.readFully(in).getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Failed to load " + RESOURCE + ": " + e.getMessage());
+            return null;
+        }
+        return new DeviceHelper(script, "device-helper-" + hash(script) + ".sh");
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(HASH_CHARS);
+            for (int i = 0; hex.length() < HASH_CHARS; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public byte[] getScript() {
+        return script;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getRemotePath() {
+        return REMOTE_DIR + fileName;
+    }
+
+    // Splits an answer into tag, query and value, returns null for any other line (e.g. an error from the shell)
+    public static String[] parseRecord(String line) {
+        int first = line.indexOf('\t');
+        if (first != 1) {
+            return null;
+        }
+        int second = line.indexOf('\t', first + 1);
+        if (second == -1) {
+            return null;
+        }
+        return new String[]{line.substring(0, first), line.substring(first + 1, second), line.substring(second + 1)};
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Snapshot of a device's read-only (ro.*) system properties, taken from one 'getprop' dump.
+// ro.* properties can only change with a new build, so snapshots are recorded per serial and
+// ro.build.fingerprint and reused by later runs until the device gets updated.
+// The record is tab separated: serial, fingerprint, key, value
+class DeviceProps {
+    public static final String FINGERPRINT = "ro.build.fingerprint";
+
+    private final Map<String, String> props;
+
+    private DeviceProps(Map<String, String> props) {
+        this.props = Collections.unmodifiableMap(props);
+    }
+
+    public static DeviceProps empty() {
+        return new DeviceProps(new HashMap<>());
+    }
+
+    public static boolean isReadOnly(String key) {
+        return key.startsWith("ro.");
+    }
+
+    // Collects "[key]: [value]" lines of a getprop dump, build it once the dump ended
+    static class Parser implements Consumer<String> {
+        private final Map<String, String> props = new HashMap<>();
+
+        @Override
+        public void accept(String line) {
+            int keyEnd = line.indexOf("]: [");
+            if (!line.startsWith("[") || keyEnd == -1 || !line.endsWith("]")) {
+                // values spanning lines aren't used by anyone
+                return;
+            }
+            String key = line.substring(1, keyEnd);
+            if (isReadOnly(key)) {
+                props.put(key, line.substring(keyEnd + 4, line.length() - 1));
+            }
+        }
+
+        // Returns null if the dump had no fingerprint, it's cut off or not a getprop dump then
+        public DeviceProps build() {
+            return props.containsKey(FINGERPRINT) ? new DeviceProps(props) : null;
+        }
+    }
+
+    // Returns null if nothing was recorded for this serial and fingerprint
+    public static DeviceProps load(Path path, String serial, String fingerprint) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Failed to load device properties: " + e.getMessage());
+            return null;
+        }
+        String prefix = serial + '\t' + fingerprint + '\t';
+        Map<String, String> props = new HashMap<>();
+        for (String line : lines) {
+            if (!line.startsWith(prefix)) {
+                continue;
+            }
+            int tab = line.indexOf('\t', prefix.length());
+            if (tab != -1) {
+                props.put(line.substring(prefix.length(), tab), line.substring(tab + 1));
+            }
+        }
+        return props.containsKey(FINGERPRINT) ? new DeviceProps(props) : null;
+    }
+
+    // Replaces whatever was recorded for the serial, other devices' snapshots are kept
+    public void save(Path path, String serial) {
+        List<String> lines = new ArrayList<>();
+        if (Files.exists(path)) {
+            try {
+                for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                    if (!line.startsWith(serial + '\t')) {
+                        lines.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to load device properties: " + e.getMessage());
+            }
+        }
+        String prefix = serial + '\t' + getFingerprint() + '\t';
+        props.forEach((key, value) -> lines.add(prefix + key + '\t' + value));
+        try {
+            Files.write(path, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Failed to save device properties: " + e.getMessage());
+        }
+    }
+
+    // Returns null if the property isn't set
+    public String get(String key) {
+        return props.get(key);
+    }
+
+    public String getFingerprint() {
+        return props.get(FINGERPRINT);
+    }
+
+    public int getSdk() {
+        return parseInt(props.get("ro.build.version.sdk"));
+    }
+
+    // e.g. "14" or "8.1.0"
+    public String getRelease() {
+        String release = props.get("ro.build.version.release");
+        return release == null ? "" : release;
+    }
+
+    // Major Android version from the release, -1 if it isn't a number (e.g. a preview codename)
+    public int getMajorVersion() {
+        String release = getRelease();
+        int dot = release.indexOf('.');
+        return parseInt(dot == -1 ? release : release.substring(0, dot));
+    }
+
+    public List<String> getAbis() {
+        String abis = props.get("ro.product.cpu.abilist");
+        if (abis == null || abis.isEmpty()) {
+            abis = props.get("ro.product.cpu.abi");
+        }
+        return abis == null || abis.isEmpty() ? Collections.emptyList() : Arrays.asList(abis.split(","));
+    }
+
+    // -1 if the device doesn't report it
+    public int getDensity() {
+        return parseInt(props.get("ro.sf.lcd_density"));
+    }
+
+    // Empty on devices without A/B slots
+    public String getSlotSuffix() {
+        String suffix = props.get("ro.boot.slot_suffix");
+        return suffix == null ? "" : suffix;
+    }
+
+    public boolean isAB() {
+        return "true".equals(props.get("ro.build.ab_update"));
+    }
+
+    // user, userdebug or eng
+    public String getBuildType() {
+        String type = props.get("ro.build.type");
+        return type == null ? "" : type;
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+// Follows the adb server's host:track-devices stream, the server pushes the whole device list whenever it changes.
+// Waiters block on the latest list instead of polling 'adb devices', listeners hear about every state change.
+// If the server goes away every device counts as gone until the stream is reestablished
+class DeviceTracker implements Closeable {
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final AdbClient client;
+    private final List<BiConsumer<String, String>> listeners = new CopyOnWriteArrayList<>();
+    private Map<String, String> states = Collections.emptyMap(); // serial -> state, guarded by this
+    private boolean received = false; // guarded by this
+    private volatile boolean closed = false;
+    private volatile Socket socket;
+
+    private DeviceTracker(AdbClient client) {
+        this.client = client;
+    }
+
+    // Returns null if the adb server can't be reached
+    public static DeviceTracker start(AdbClient client, long firstListTimeoutMs) {
+        DeviceTracker tracker = new DeviceTracker(client);
+        try {
+            tracker.socket = client.openDeviceTracking();
+        } catch (IOException e) {
+            return null;
+        }
+        Thread thread = new Thread(tracker::follow, "device-tracker");
+        thread.setDaemon(true);
+        thread.start();
+        tracker.awaitFirstList(firstListTimeoutMs);
+        return tracker;
+    }
+
+    private void follow() {
+        while (!closed) {
+            try {
+                Socket current = socket;
+                if (current == null) {
+                    current = client.openDeviceTracking();
+                    socket = current;
+                }
+                while (true) {
+                    update(parse(AdbClient.readLengthPrefixed(current.getInputStream())));
+                }
+            } catch (IOException e) {
+                socket = null;
+                if (closed) {
+                    return;
+                }
+                update(Collections.emptyMap());
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Same format as host:devices, "serial\tstate" per line
+    private static Map<String, String> parse(String list) {
+        Map<String, String> parsed = new LinkedHashMap<>();
+        for (String line : list.split("\n")) {
+            int tab = line.indexOf('\t');
+            if (tab > 0) {
+                parsed.put(line.substring(0, tab), line.substring(tab + 1).trim());
+            }
+        }
+        return parsed;
+    }
+
+    private void update(Map<String, String> newStates) {
+        Map<String, String> oldStates;
+        synchronized (this) {
+            oldStates = states;
+            states = Collections.unmodifiableMap(newStates);
+            received = true;
+            notifyAll();
+        }
+        // listeners run outside the lock so they may query the tracker
+        for (Map.Entry<String, String> old : oldStates.entrySet()) {
+            if (!newStates.containsKey(old.getKey())) {
+                fire(old.getKey(), null);
+            }
+        }
+        for (Map.Entry<String, String> current : newStates.entrySet()) {
+            if (!current.getValue().equals(oldStates.get(current.getKey()))) {
+                fire(current.getKey(), current.getValue());
+            }
+        }
+    }
+
+    private void fire(String serial, String state) {
+        for (BiConsumer<String, String> listener : listeners) {
+            try {
+                listener.accept(serial, state);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private synchronized void awaitFirstList(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining;
+        while (!received && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Called with the serial and its new state on every change, the state is null once the device is gone
+    public void addListener(BiConsumer<String, String> listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized Map<String, String> getStates() {
+        return states;
+    }
+
+    public List<Device> getDevices() {
+        List<Device> devices = new ArrayList<>();
+        getStates().forEach((serial, state) -> devices.add(new Device(serial, state)));
+        return devices;
+    }
+
+    // Waits until the state of serial satisfies the condition, the state is null while the device is absent.
+    // Returns false if the deadline passed first
+    public synchronized boolean awaitState(String serial, Predicate<String> condition, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!condition.test(states.get(serial))) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Waits until the device list differs from previous and returns it, or returns the unchanged list at the deadline
+    public synchronized Map<String, String> awaitChange(Map<String, String> previous, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (states.equals(previous)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return states;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Runs blocking adb calls concurrently. Holds no per-call state, every call carries its own ProcessBuilder.
+// Commands in flight are limited per device since adbd and the device's package manager serialize most work anyway.
+// Tasks run on virtual threads when the JDK has them (21+), on a bounded pool of platform threads otherwise.
+class ExecutionEngine {
+    public static final int MAX_IN_FLIGHT_PER_DEVICE = 4;
+    private static final int PLATFORM_POOL_SIZE = 16;
+
+    private final ExecutorService executor = createExecutor();
+    private final ConcurrentHashMap<String, Semaphore> devicePermits = new ConcurrentHashMap<>();
+    private final boolean virtualThreads = !(executor instanceof ThreadPoolExecutor);
+
+    private static ExecutorService createExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // JDK 8-20
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(PLATFORM_POOL_SIZE, PLATFORM_POOL_SIZE,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "adb-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    // Blocks until one of the device's permits is free, release it with release(device)
+    public void acquire(String device) throws InterruptedException {
+        permitsOf(device).acquire();
+    }
+
+    public void release(String device) {
+        permitsOf(device).release();
+    }
+
+    private Semaphore permitsOf(String device) {
+        return devicePermits.computeIfAbsent(device == null ? "" : device, key -> new Semaphore(MAX_IN_FLIGHT_PER_DEVICE, true));
+    }
+
+    // Runs the action for every item concurrently and returns once all of them finished.
+    // The action shouldn't hold a permit itself, the commands it runs acquire their own.
+    // A failed item is reported, an Error (e.g. the exit of an action that called errorExit) is rethrown once all finished
+    public <T> void forEachParallel(Collection<T> items, Consumer<T> action) {
+        forEachParallel(items, Integer.MAX_VALUE, action);
+    }
+
+    // At most window items are in progress at once, for actions whose items each hold a resource until they finish
+    public <T> void forEachParallel(Collection<T> items, int window, Consumer<T> action) {
+        Semaphore slots = new Semaphore(window);
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(items.size());
+        for (T item : items) {
+            slots.acquireUninterruptibly();
+            tasks.add(CompletableFuture.runAsync(() -> {
+                try {
+                    action.accept(item);
+                } finally {
+                    slots.release();
+                }
+            }, executor));
+        }
+        Error error = null;
+        for (CompletableFuture<Void> task : tasks) {
+            try {
+                task.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof Error) {
+                    if (error == null) {
+                        error = (Error) e.getCause();
+                    }
+                } else {
+                    System.err.println(e.getCause());
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
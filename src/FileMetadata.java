@@ -0,0 +1,189 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// What this session has seen of a device's file system: directory listings, stat results, existence checks and
+// directory sizes. Filled in bulk (a listing answers whether each of its entries exists), so checking many paths
+// under one directory costs one listing instead of a command each.
+// Commands with side effects drop what they may have changed: the path itself, everything under it, its parent's
+// listing and the sizes of all its ancestors. Paths are taken literally, a change made through a symlink
+// (e.g. /sdcard) isn't seen under its target (/storage/emulated/0).
+// Results of queries that started before a change are dropped instead of recorded
+class FileMetadata {
+    private static class Listing {
+        final Map<String, DirEntry> entries = new LinkedHashMap<>(); // name-only listings map names to null
+        final boolean detailed;
+
+        Listing(boolean detailed) {
+            this.detailed = detailed;
+        }
+    }
+
+    private final Map<String, Listing> listings = new ConcurrentHashMap<>();
+    private final Map<String, DirEntry> stats = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> presence = new ConcurrentHashMap<>(); // answers of existence-only checks
+    private final Map<String, Long> sizes = new ConcurrentHashMap<>();
+    private long generation; // guarded by this
+
+    // Taken before a query, its results are only recorded if nothing changed in the meantime
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public synchronized void putListing(long since, String dir, List<DirEntry> entries, boolean detailed) {
+        if (since != generation) {
+            return;
+        }
+        String path = normalize(dir);
+        Listing known = listings.get(path);
+        if (known != null && known.detailed && !detailed) {
+            return;
+        }
+        Listing listing = new Listing(detailed);
+        for (DirEntry entry : entries) {
+            listing.entries.put(entry.name, detailed ? entry : null);
+        }
+        listings.put(path, listing);
+    }
+
+    public synchronized void putNames(long since, String dir, List<String> names) {
+        List<DirEntry> entries = new ArrayList<>(names.size());
+        for (String name : names) {
+            entries.add(new DirEntry(name, 0, 0, 0));
+        }
+        putListing(since, dir, entries, false);
+    }
+
+    // null records that the path doesn't exist
+    public synchronized void putStat(long since, String phonePath, DirEntry entry) {
+        if (since != generation) {
+            return;
+        }
+        String path = normalize(phonePath);
+        if (entry == null) {
+            presence.put(path, false);
+        } else {
+            stats.put(path, entry);
+        }
+    }
+
+    public synchronized void putPresence(long since, String phonePath, boolean exists) {
+        if (since == generation) {
+            presence.put(normalize(phonePath), exists);
+        }
+    }
+
+    public synchronized void putSize(long since, String phoneDir, long size) {
+        if (since == generation) {
+            sizes.put(normalize(phoneDir), size);
+        }
+    }
+
+    // Returns null if the directory wasn't listed, or only by name
+    public List<DirEntry> getListing(String phoneDir) {
+        Listing listing = listings.get(normalize(phoneDir));
+        return listing == null || !listing.detailed ? null : new ArrayList<>(listing.entries.values());
+    }
+
+    // Returns null if the directory wasn't listed
+    public List<String> getNames(String phoneDir) {
+        Listing listing = listings.get(normalize(phoneDir));
+        return listing == null ? null : new ArrayList<>(listing.entries.keySet());
+    }
+
+    // Returns null if it's unknown
+    public Boolean exists(String phonePath) {
+        String path = normalize(phonePath);
+        Boolean exists = presence.get(path);
+        if (exists != null) {
+            return exists;
+        }
+        if (stats.containsKey(path)) {
+            return true;
+        }
+        Listing parent = path.equals("/") ? null : listings.get(parentOf(path));
+        return parent == null ? null : parent.entries.containsKey(nameOf(path));
+    }
+
+    // Returns null if it's unknown or the path doesn't exist, see exists
+    public DirEntry stat(String phonePath) {
+        String path = normalize(phonePath);
+        DirEntry entry = stats.get(path);
+        if (entry != null) {
+            return entry;
+        }
+        Listing parent = path.equals("/") ? null : listings.get(parentOf(path));
+        return parent == null || !parent.detailed ? null : parent.entries.get(nameOf(path));
+    }
+
+    // Returns null if it's unknown
+    public Long getSize(String phoneDir) {
+        return sizes.get(normalize(phoneDir));
+    }
+
+    // Drops what a change to the path (creating, removing, writing or moving it) may have made stale
+    public synchronized void invalidate(String phonePath) {
+        generation++;
+        String path = normalize(phonePath);
+        if (path.equals("/")) {
+            clear();
+            return;
+        }
+        String under = path + '/';
+        for (Map<String, ?> map : Arrays.<Map<String, ?>>asList(listings, stats, presence, sizes)) {
+            map.keySet().removeIf(key -> key.equals(path) || key.startsWith(under));
+        }
+        // 'mkdir -p', push and tar create missing parents, ancestors that listed the way down stay valid
+        String child = path;
+        String ancestor = parentOf(path);
+        boolean parent = true;
+        while (true) {
+            sizes.remove(ancestor);
+            stats.remove(ancestor);
+            if (Boolean.FALSE.equals(presence.get(ancestor))) {
+                presence.remove(ancestor);
+            }
+            Listing listing = listings.get(ancestor);
+            if (listing != null && (parent || !listing.entries.containsKey(nameOf(child)))) {
+                listings.remove(ancestor);
+            }
+            if (ancestor.equals("/")) {
+                break;
+            }
+            child = ancestor;
+            ancestor = parentOf(ancestor);
+            parent = false;
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        listings.clear();
+        stats.clear();
+        presence.clear();
+        sizes.clear();
+    }
+
+    // No trailing or repeated slashes
+    static String normalize(String phonePath) {
+        StringBuilder path = new StringBuilder(phonePath.length());
+        for (int i = 0; i < phonePath.length(); i++) {
+            char c = phonePath.charAt(i);
+            if (c != '/' || path.length() == 0 || path.charAt(path.length() - 1) != '/') {
+                path.append(c);
+            }
+        }
+        if (path.length() > 1 && path.charAt(path.length() - 1) == '/') {
+            path.setLength(path.length() - 1);
+        }
+        return path.toString();
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash <= 0 ? "/" : path.substring(0, slash);
+    }
+
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
@@ -13,15 +13,42 @@ public class Main {
             CLI.displayHelp();
             return;
         }
+        boolean startDaemon = args[0].equals(Daemon.START);
+        if (!startDaemon) {
+            int status = Daemon.forward(args);
+            if (status != -1) {
+                System.exit(status);
+            }
+            if (args[0].equals(Daemon.STOP)) {
+                System.out.println("No daemon is running for this directory");
+                return;
+            }
+        }
 
         System.out.println("Detecting ADB..");
-        if (detectADBEnv()) {
-            CLI.start(Commands.fromEnv(), args);
-            return;
+        Commands commands = detectCommands();
+        if (startDaemon) {
+            Daemon.serve(commands, parsePort(args));
+        } else {
+            CLI.start(commands, args);
+        }
+    }
+
+    private static Commands detectCommands() {
+        AdbDiscovery known = CACHE_ADB_PATH ? AdbDiscovery.load() : null;
+        if (known != null) {
+            return known.mode.equals(AdbDiscovery.ENV) ? Commands.fromEnv() : Commands.fromDir(known.getDirectory());
+        }
+        String banner = readADBEnvBanner();
+        if (banner != null) {
+            Path binary = AdbDiscovery.findOnPath();
+            if (binary != null) {
+                saveDiscovery(AdbDiscovery.of(AdbDiscovery.ENV, binary, AdbDiscovery.parseVersion(banner)));
+            }
+            return Commands.fromEnv();
         }
         if (detectADBCmdEnv()) {
-            CLI.start(Commands.fromCmdEnv(), args);
-            return;
+            return Commands.fromCmdEnv();
         }
         String path = readPathFromCache();
         if (!isValidPath(path)) {
@@ -29,20 +56,48 @@ public class Main {
             path = getValidPath();
         }
         cachePath(path);
-        CLI.start(Commands.fromDir(path), args);
+        Path binary = AdbDiscovery.findIn(Utilities.normalizeStringPath(path));
+        if (binary != null) {
+            saveDiscovery(AdbDiscovery.of(AdbDiscovery.DIR, binary, ""));
+        }
+        return Commands.fromDir(path);
     }
 
-    private static boolean detectADBEnv() {
+    // daemon [port], any free port by default
+    private static int parsePort(String[] args) {
+        if (args.length < 2) {
+            return 0;
+        }
+        try {
+            int port = Integer.parseInt(args[1]);
+            if (port >= 0 && port <= 65535) {
+                return port;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        Utilities.errExit("Invalid port: " + args[1]);
+        return 0;
+    }
+
+    // Returns the start of adb's banner or null if there's no adb on the PATH
+    private static String readADBEnvBanner() {
         ProcessBuilder procBuilder = new ProcessBuilder();
         procBuilder.command("adb");
         try {
             Process proc = procBuilder.start();
             proc.waitFor(10, TimeUnit.MILLISECONDS);
-            String output = Utilities.read(proc.getInputStream(), 36, false);
-            return output.startsWith("Android Debug Bridge");
+            String output = Utilities.read(proc.getInputStream(), 64, false);
+            return output.startsWith("Android Debug Bridge") ? output : null;
         } catch (IOException | InterruptedException exceptions) {
             // adb is not in path or adb as env var is only visible to cmd
-            return false;
+            return null;
+        }
+    }
+
+    // adb only visible to cmd isn't recorded, there's no way to check it's still there without running cmd
+    private static void saveDiscovery(AdbDiscovery discovery) {
+        if (CACHE_ADB_PATH && discovery != null) {
+            discovery.save();
         }
     }
 
@@ -4,6 +4,7 @@ public class Options {
     public String dir;
     public boolean skipCache = false;
     public boolean force = false;
+    public String resume; // journal of the debloat run to resume
 
     public static Options parseOptions(String[] options, int fromIndex) {
         Options opts = new Options();
@@ -39,6 +40,13 @@ public class Options {
                     }
                     opts.dir = options[i];
                 } break;
+
+                case "--resume": {
+                    if (++i >= options.length) {
+                        Utilities.errExit("No journal passed for --resume <journal>");
+                    }
+                    opts.resume = options[i];
+                } break;
             }
         }
         return opts;
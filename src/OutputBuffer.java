@@ -0,0 +1,213 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+// Captures command output as bytes, grows geometrically and never beyond maxLen.
+// Output is decoded as UTF-8 (what adb and the device shell emit) regardless of the platform charset.
+// With a spill threshold, output beyond it goes to a temp file so dumps of any size take a fixed amount of heap,
+// read them back with forEachLine and close the buffer to delete the file
+class OutputBuffer implements Closeable {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int READ_CHUNK = 8192;
+
+    private final int maxLen;
+    private final int spillThreshold;
+    private byte[] buff;
+    private int size; // bytes in buff
+    private Path spillPath;
+    private FileChannel spill;
+    private int spilled; // bytes in the spill file, they come before buff
+
+    public OutputBuffer(int maxLen) {
+        this(maxLen, Integer.MAX_VALUE);
+    }
+
+    public OutputBuffer(int maxLen, int spillThreshold) {
+        this.maxLen = Math.max(0, maxLen);
+        this.spillThreshold = Math.max(READ_CHUNK, spillThreshold);
+        this.buff = new byte[Math.min(INITIAL_CAPACITY, this.maxLen)];
+    }
+
+    // Returns how many bytes were accepted, the rest is past maxLen and dropped
+    public int write(byte[] bytes, int offset, int length) throws IOException {
+        int accepted = Math.min(length, maxLen - size());
+        if (accepted <= 0) {
+            return 0;
+        }
+        if (size + accepted > spillThreshold) {
+            spillBuffer();
+            if (accepted >= spillThreshold) {
+                writeToSpill(ByteBuffer.wrap(bytes, offset, accepted));
+                return accepted;
+            }
+        }
+        ensureCapacity(size + accepted);
+        System.arraycopy(bytes, offset, buff, size, accepted);
+        size += accepted;
+        return accepted;
+    }
+
+    // Reads until EOF or until the buffer is full. Returns true if EOF was reached before maxLen
+    public boolean readFrom(InputStream is) throws IOException {
+        while (size() < maxLen) {
+            if (size == buff.length) {
+                if (size >= spillThreshold) {
+                    spillBuffer();
+                } else {
+                    ensureCapacity(size + READ_CHUNK);
+                }
+            }
+            int chunk = Math.min(buff.length - size, maxLen - size());
+            int read = is.read(buff, size, chunk);
+            if (read < 0) {
+                return true;
+            }
+            size += read;
+        }
+        return false;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= buff.length) {
+            return;
+        }
+        long doubled = 2L * buff.length;
+        int capacity = (int) Math.min(Math.min(maxLen, spillThreshold), Math.max(doubled, required));
+        byte[] grown = new byte[capacity];
+        System.arraycopy(buff, 0, grown, 0, size);
+        buff = grown;
+    }
+
+    private void spillBuffer() throws IOException {
+        if (spill == null) {
+            spillPath = Files.createTempFile("debloater-output", ".txt");
+            spill = FileChannel.open(spillPath, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        }
+        writeToSpill(ByteBuffer.wrap(buff, 0, size));
+        size = 0;
+    }
+
+    private void writeToSpill(ByteBuffer bytes) throws IOException {
+        int length = bytes.remaining();
+        while (bytes.hasRemaining()) {
+            spill.write(bytes, spilled + length - bytes.remaining());
+        }
+        spilled += length;
+    }
+
+    public int size() {
+        return spilled + size;
+    }
+
+    public boolean isFull() {
+        return size() >= maxLen;
+    }
+
+    public boolean isSpilled() {
+        return spill != null;
+    }
+
+    // Hands every line (without its terminator) to onLine, spilled output is read through a memory mapping
+    public void forEachLine(Consumer<String> onLine) throws IOException {
+        InputStream in = new ByteArrayInputStream(buff, 0, size);
+        if (spill != null) {
+            in = new SequenceInputStream(new MappedInputStream(spill.map(FileChannel.MapMode.READ_ONLY, 0, spilled)), in);
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            onLine.accept(line);
+        }
+    }
+
+    // Writes the output to target, a spill file is moved there instead of copied
+    public void saveTo(Path target) throws IOException {
+        if (spill == null) {
+            try (OutputStream out = Files.newOutputStream(target)) {
+                out.write(buff, 0, size);
+            }
+            return;
+        }
+        spillBuffer();
+        spill.close();
+        spill = null;
+        Files.move(spillPath, target, StandardCopyOption.REPLACE_EXISTING);
+        spillPath = null;
+        spilled = 0;
+    }
+
+    // Malformed sequences become U+FFFD, same as a REPLACE-configured UTF-8 CharsetDecoder,
+    // but String's constructor has a fast path for ASCII which is most of what shells print.
+    // Spilled output is read back whole, use forEachLine for large outputs
+    @Override
+    public String toString() {
+        if (spill == null) {
+            return new String(buff, 0, size, StandardCharsets.UTF_8);
+        }
+        try {
+            ByteArrayOutputStream whole = new ByteArrayOutputStream(size());
+            copyTo(whole);
+            return new String(whole.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return new String(buff, 0, size, StandardCharsets.UTF_8);
+        }
+    }
+
+    private void copyTo(OutputStream out) throws IOException {
+        MappedInputStream mapped = new MappedInputStream(spill.map(FileChannel.MapMode.READ_ONLY, 0, spilled));
+        byte[] chunk = new byte[READ_CHUNK];
+        int read;
+        while ((read = mapped.read(chunk, 0, chunk.length)) != -1) {
+            out.write(chunk, 0, read);
+        }
+        out.write(buff, 0, size);
+    }
+
+    // Deletes the spill file, if any
+    @Override
+    public void close() {
+        if (spill == null) {
+            return;
+        }
+        try {
+            spill.close();
+            Files.deleteIfExists(spillPath);
+        } catch (IOException e) {
+            System.err.println("Failed to delete " + spillPath + ": " + e.getMessage());
+        }
+        spill = null;
+    }
+
+    private static class MappedInputStream extends InputStream {
+        private final MappedByteBuffer mapped;
+
+        MappedInputStream(MappedByteBuffer mapped) {
+            this.mapped = mapped;
+        }
+
+        @Override
+        public int read() {
+            return mapped.hasRemaining() ? mapped.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mapped.hasRemaining()) {
+                return -1;
+            }
+            int chunk = Math.min(len, mapped.remaining());
+            mapped.get(b, off, chunk);
+            return chunk;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+
+// What the package manager knows about a device's packages, kept on disk between runs.
+// Refreshed from bulk 'pm list packages' listings: a package whose code path, version and uid are unchanged keeps
+// its recorded details, only new and updated packages get their apks and install times looked up again.
+// The record is tab separated: serial, name, uid, versionCode, enabled, third party, installer,
+// first install time, last update time, code path, then one field per apk
+class PackageIndex {
+    private static final int FIXED_FIELDS = 10;
+
+    static class Entry {
+        public String name, uid = "", installer = "", codePath = "";
+        public long versionCode = -1; // unknown before Android 9
+        public boolean enabled = true, thirdParty;
+        public String firstInstallTime = "", lastUpdateTime = ""; // as dumpsys prints them
+        public List<String> apks = Collections.emptyList();
+
+        // Whether other is the same install of the package, its details still hold then
+        boolean sameInstall(Entry other) {
+            return codePath.equals(other.codePath) && versionCode == other.versionCode && uid.equals(other.uid);
+        }
+
+        // Details missing after a failed lookup are looked up again
+        boolean hasDetails() {
+            return !apks.isEmpty() && !lastUpdateTime.isEmpty();
+        }
+
+        boolean sameListing(Entry other) {
+            return sameInstall(other) && enabled == other.enabled && thirdParty == other.thirdParty
+                    && installer.equals(other.installer);
+        }
+    }
+
+    private Map<String, Entry> entries = new LinkedHashMap<>();
+    private boolean dirty;
+
+    public static PackageIndex load(Path path, String serial) {
+        PackageIndex index = new PackageIndex();
+        if (!Files.exists(path)) {
+            return index;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Failed to load package index: " + e.getMessage());
+            return index;
+        }
+        String prefix = serial + '\t';
+        for (String line : lines) {
+            if (!line.startsWith(prefix)) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            if (fields.length < FIXED_FIELDS) {
+                continue;
+            }
+            Entry entry = new Entry();
+            entry.name = fields[1];
+            entry.uid = fields[2];
+            try {
+                entry.versionCode = Long.parseLong(fields[3]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            entry.enabled = fields[4].equals("1");
+            entry.thirdParty = fields[5].equals("1");
+            entry.installer = fields[6];
+            entry.firstInstallTime = fields[7];
+            entry.lastUpdateTime = fields[8];
+            entry.codePath = fields[9];
+            entry.apks = Arrays.asList(Arrays.copyOfRange(fields, FIXED_FIELDS, fields.length));
+            index.entries.put(entry.name, entry);
+        }
+        return index;
+    }
+
+    // Replaces whatever was recorded for the serial, other devices' indexes are kept
+    public void save(Path path, String serial) {
+        List<String> lines = new ArrayList<>();
+        if (Files.exists(path)) {
+            try {
+                for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                    if (!line.startsWith(serial + '\t')) {
+                        lines.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to load package index: " + e.getMessage());
+            }
+        }
+        for (Entry entry : entries.values()) {
+            StringBuilder line = new StringBuilder(256);
+            line.append(serial).append('\t').append(entry.name).append('\t').append(entry.uid)
+                    .append('\t').append(entry.versionCode)
+                    .append('\t').append(entry.enabled ? '1' : '0').append('\t').append(entry.thirdParty ? '1' : '0')
+                    .append('\t').append(entry.installer).append('\t').append(entry.firstInstallTime)
+                    .append('\t').append(entry.lastUpdateTime).append('\t').append(entry.codePath);
+            for (String apk : entry.apks) {
+                line.append('\t').append(apk);
+            }
+            lines.add(line.toString());
+        }
+        try {
+            Files.write(path, lines, StandardCharsets.UTF_8);
+            dirty = false;
+        } catch (IOException e) {
+            System.err.println("Failed to save package index: " + e.getMessage());
+        }
+    }
+
+    // Parses "package:<code path>=<name> versionCode:<v> installer=<i> uid:<u>", what follows the name depends on
+    // the flags given to 'pm list packages'. Returns null for anything else
+    public static Entry parseListing(String line) {
+        if (!line.startsWith("package:")) {
+            return null;
+        }
+        String[] tokens = line.substring("package:".length()).trim().split("\\s+");
+        // code paths may contain '=' (base64 directory names), package names can't
+        int eq = tokens[0].lastIndexOf('=');
+        if (eq <= 0 || eq == tokens[0].length() - 1) {
+            return null;
+        }
+        Entry entry = new Entry();
+        entry.codePath = tokens[0].substring(0, eq);
+        entry.name = tokens[0].substring(eq + 1);
+        for (int i = 1; i < tokens.length; i++) {
+            String token = tokens[i];
+            if (token.startsWith("versionCode:")) {
+                try {
+                    entry.versionCode = Long.parseLong(token.substring("versionCode:".length()));
+                } catch (NumberFormatException ignored) {
+                }
+            } else if (token.startsWith("installer=")) {
+                String installer = token.substring("installer=".length());
+                entry.installer = installer.equals("null") ? "" : installer;
+            } else if (token.startsWith("uid:")) {
+                // one uid per user, the first is the primary user's
+                int comma = token.indexOf(',');
+                entry.uid = token.substring("uid:".length(), comma == -1 ? token.length() : comma);
+            }
+        }
+        return entry;
+    }
+
+    // Takes a fresh listing as the set of installed packages, returns the new and updated ones,
+    // their apks and install times have to be looked up
+    public Set<String> merge(List<Entry> listed) {
+        Map<String, Entry> merged = new LinkedHashMap<>();
+        Set<String> stale = new LinkedHashSet<>();
+        boolean changed = listed.size() != entries.size();
+        for (Entry entry : listed) {
+            Entry known = entries.get(entry.name);
+            if (known != null && known.sameInstall(entry) && known.hasDetails()) {
+                entry.apks = known.apks;
+                entry.firstInstallTime = known.firstInstallTime;
+                entry.lastUpdateTime = known.lastUpdateTime;
+                changed |= !known.sameListing(entry);
+            } else {
+                stale.add(entry.name);
+                changed = true;
+            }
+            merged.put(entry.name, entry);
+        }
+        entries = merged;
+        dirty |= changed;
+        return stale;
+    }
+
+    public void setApks(String name, List<String> apks) {
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            entry.apks = apks;
+            dirty = true;
+        }
+    }
+
+    public void setTimes(String name, String firstInstallTime, String lastUpdateTime) {
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            entry.firstInstallTime = firstInstallTime;
+            entry.lastUpdateTime = lastUpdateTime;
+            dirty = true;
+        }
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    // Returns null if the package isn't installed
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public Set<String> names(PackageType type) {
+        Set<String> names = new LinkedHashSet<>();
+        for (Entry entry : entries.values()) {
+            if (matches(entry, type)) {
+                names.add(entry.name);
+            }
+        }
+        return names;
+    }
+
+    public List<App> apps(PackageType type) {
+        List<App> apps = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (matches(entry, type)) {
+                apps.add(new App(entry.name, entry.uid));
+            }
+        }
+        return apps;
+    }
+
+    // Same split as 'pm list packages -3' and '-s'
+    private static boolean matches(Entry entry, PackageType type) {
+        switch (type) {
+            case USER:
+                return entry.thirdParty;
+            case SYSTEM:
+                return !entry.thirdParty;
+            default:
+                return true;
+        }
+    }
+
+    // Collects install times from 'dumpsys package' output, of one package or the whole "packages" section
+    static class TimesParser implements Consumer<String> {
+        private final Map<String, String[]> times = new HashMap<>();
+        private String current;
+        private boolean done;
+
+        @Override
+        public void accept(String line) {
+            if (done) {
+                return;
+            }
+            String trimmed = line.trim();
+            if (trimmed.startsWith("Hidden system packages:")) {
+                // the factory versions of updated system packages follow, with their own times
+                done = true;
+            } else if (trimmed.startsWith("Package [")) {
+                int end = trimmed.indexOf(']');
+                current = end == -1 ? null : trimmed.substring("Package [".length(), end);
+                if (current != null) {
+                    times.putIfAbsent(current, new String[]{"", ""});
+                }
+            } else if (current != null && trimmed.startsWith("firstInstallTime=")) {
+                times.get(current)[0] = trimmed.substring("firstInstallTime=".length());
+            } else if (current != null && trimmed.startsWith("lastUpdateTime=")) {
+                times.get(current)[1] = trimmed.substring("lastUpdateTime=".length());
+            }
+        }
+
+        // first install and last update time of each package seen
+        public Map<String, String[]> getTimes() {
+            return times;
+        }
+    }
+}
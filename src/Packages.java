@@ -27,6 +27,35 @@ public class Packages {
         return packages;
     }
 
+    // Parses a single "package:com.group.example" line, returns null for anything else
+    public static String parsePackageLine(String line) {
+        if (!line.startsWith("package:")) {
+            return null;
+        }
+        String packageName = line.substring(PACKAGE_NAME_OFFSET).trim();
+        return packageName.isEmpty() ? null : packageName;
+    }
+
+    // Parses a single "package:com.group.example uid:10123" line, returns null for anything else
+    public static App parseAppLine(String line) {
+        if (!line.startsWith("package:")) {
+            return null;
+        }
+        int space = line.indexOf(' ', PACKAGE_NAME_OFFSET);
+        if (space == -1) {
+            return null;
+        }
+        int uidColon = line.indexOf(':', space);
+        if (uidColon == -1) {
+            return null;
+        }
+        int end = uidColon + 1;
+        while (end < line.length() && line.charAt(end) != ',' && line.charAt(end) != '\r') {
+            end++;
+        }
+        return new App(line.substring(PACKAGE_NAME_OFFSET, space), line.substring(uidColon + 1, end));
+    }
+
     public static List<String> parseToList(String output) {
         List<String> packages = new ArrayList<>();
         int outputLen = output.length();
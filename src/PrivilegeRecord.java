@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// How each device was last given privileges, so a repeat run checks the known route instead of
+// running 'adb root' (which restarts adbd) and then waiting on su.
+// A record only holds for the build it was detected on, a reflashed device is detected again.
+// The record is tab separated: serial, fingerprint, privilege type
+class PrivilegeRecord {
+    private static final String RECORD_FILE = "privileges.txt";
+
+    // Returns null if nothing was recorded for this serial and fingerprint
+    public static PrivilegeType load(String serial, String fingerprint) {
+        Path path = Utilities.pathNextToExecutable(RECORD_FILE);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Failed to load privileges: " + e.getMessage());
+            return null;
+        }
+        String prefix = serial + '\t' + fingerprint + '\t';
+        for (String line : lines) {
+            if (!line.startsWith(prefix)) {
+                continue;
+            }
+            try {
+                return PrivilegeType.valueOf(line.substring(prefix.length()));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // Replaces whatever was recorded for the serial, null only forgets it
+    public static void save(String serial, String fingerprint, PrivilegeType privilege) {
+        Path path = Utilities.pathNextToExecutable(RECORD_FILE);
+        List<String> lines = new ArrayList<>();
+        if (Files.exists(path)) {
+            try {
+                for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                    if (!line.startsWith(serial + '\t')) {
+                        lines.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to load privileges: " + e.getMessage());
+            }
+        }
+        if (privilege != null) {
+            lines.add(serial + '\t' + fingerprint + '\t' + privilege);
+        }
+        try {
+            Files.write(path, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Failed to save privileges: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// A single long-lived 'adb shell' fed over stdin, saves spawning adb + a device shell per command.
+// Every command's output is terminated by a unique sentinel line which also carries the exit code:
+// <output>\n<sentinel><n> <exit code>\n
+class ShellSession {
+    private static final String END_OF_STREAM = "\u0000EOF"; // never produced by readLine
+    private static final long HANDSHAKE_TIMEOUT_MS = 5000;
+    // Lines read ahead of the consumer, beyond that the reader stops reading and the device's output waits in the pipe
+    private static final int MAX_QUEUED_LINES = 1024;
+    private static final long ENQUEUE_POLL_MS = 100;
+
+    private final Process proc;
+    private final Writer stdin;
+    private final BlockingQueue<String> lines = new LinkedBlockingQueue<>(MAX_QUEUED_LINES);
+    private final String sentinel = "__DEBLOATER_" + UUID.randomUUID().toString().replace("-", "") + "_";
+    private long counter = 0;
+    private volatile boolean alive = true;
+    private int lastExitCode = -1;
+
+    private ShellSession(Process proc) {
+        this.proc = proc;
+        this.stdin = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream(), StandardCharsets.UTF_8));
+        Thread reader = new Thread(this::readLines, "adb-shell-session");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Returns null if adb couldn't be started or the device shell didn't respond
+    public static ShellSession open(String... adbTerms) {
+        ProcessBuilder procBuilder = new ProcessBuilder(Utilities.joinCommand(adbTerms, "shell"));
+        procBuilder.redirectErrorStream(true);
+        Process proc;
+        try {
+            proc = procBuilder.start();
+        } catch (IOException e) {
+            return null;
+        }
+        ShellSession session = new ShellSession(proc);
+        String handshake = session.execute("echo ready", HANDSHAKE_TIMEOUT_MS);
+        if (!"ready\n".equals(handshake) || session.lastExitCode != 0) {
+            session.close();
+            return null;
+        }
+        return session;
+    }
+
+    private void readLines() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(proc.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!enqueue(line)) {
+                    return;
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        enqueue(END_OF_STREAM);
+    }
+
+    // Waits for room in the queue. Returns false once the session is closed, nobody takes lines from it anymore
+    private boolean enqueue(String line) {
+        try {
+            while (alive) {
+                if (lines.offer(line, ENQUEUE_POLL_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException ignored) {
+        }
+        return false;
+    }
+
+    // Returns the command's combined stdout and stderr.
+    // Returns null if the session was unusable before the command produced anything, the caller may retry elsewhere.
+    // If the deadline passes the session is closed since the shell is still occupied by the command.
+    public synchronized String execute(String commandLine, long timeoutMs) {
+        StringBuilder output = new StringBuilder();
+        if (!run(commandLine, timeoutMs, line -> output.append(line).append('\n'))) {
+            return null;
+        }
+        return stripLastNewline(output);
+    }
+
+    // Streams output lines to onLine as they arrive. Returns false under the same conditions execute returns null
+    public synchronized boolean executeLines(String commandLine, long timeoutMs, Consumer<String> onLine) {
+        // The newline printed in front of the sentinel shows up as a trailing empty line,
+        // so empty lines are held back until it's known whether anything follows them
+        int[] heldEmptyLines = {0};
+        boolean usable = run(commandLine, timeoutMs, line -> {
+            if (line.isEmpty()) {
+                heldEmptyLines[0]++;
+                return;
+            }
+            for (; heldEmptyLines[0] > 0; heldEmptyLines[0]--) {
+                onLine.accept("");
+            }
+            onLine.accept(line);
+        });
+        for (; heldEmptyLines[0] > 1; heldEmptyLines[0]--) {
+            onLine.accept("");
+        }
+        return usable;
+    }
+
+    // Passes raw lines including the one produced by the sentinel's leading newline
+    private boolean run(String commandLine, long timeoutMs, Consumer<String> onRawLine) {
+        if (!alive) {
+            return false;
+        }
+        String id = sentinel + (counter++);
+        try {
+            // stdin is detached so a command can't swallow the commands queued after it
+            stdin.write("(" + commandLine + ") </dev/null 2>&1; printf '\\n" + id + " %d\\n' $?\n");
+            stdin.flush();
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+
+        boolean readAny = false;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            String line;
+            try {
+                line = remaining > 0 ? lines.poll(remaining, TimeUnit.MILLISECONDS) : null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                line = null;
+            }
+            if (line == null) {
+                // timed out, the shell is still busy with this command
+                close();
+                return true;
+            }
+            if (line == END_OF_STREAM) {
+                close();
+                return readAny;
+            }
+            if (line.startsWith(id)) {
+                lastExitCode = parseExitCode(line.substring(id.length()).trim());
+                return true;
+            }
+            readAny = true;
+            onRawLine.accept(line);
+        }
+    }
+
+    // Drops the newline which the sentinel printf puts in front of itself
+    private static String stripLastNewline(StringBuilder output) {
+        int len = output.length();
+        if (len > 0 && output.charAt(len - 1) == '\n') {
+            output.setLength(len - 1);
+        }
+        return output.toString();
+    }
+
+    private static int parseExitCode(String code) {
+        try {
+            return Integer.parseInt(code);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public int getLastExitCode() {
+        return lastExitCode;
+    }
+
+    public boolean isAlive() {
+        return alive && proc.isAlive();
+    }
+
+    public void close() {
+        if (!alive) {
+            return;
+        }
+        alive = false;
+        try {
+            stdin.write("exit\n");
+            stdin.flush();
+            stdin.close();
+        } catch (IOException ignored) {
+        }
+        proc.destroy();
+    }
+}
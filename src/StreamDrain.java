@@ -0,0 +1,118 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+// Drains a process' output on its own thread from the moment the process starts,
+// a child writing more than the OS pipe buffer holds would otherwise block until someone reads it
+class StreamDrain {
+    private final InputStream is;
+    private final OutputBuffer buffer;
+    private final Consumer<String> onLine;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private StreamDrain(InputStream is, OutputBuffer buffer, Consumer<String> onLine) {
+        this.is = is;
+        this.buffer = buffer;
+        this.onLine = onLine;
+    }
+
+    // Collects up to maxLen bytes of output
+    public static StreamDrain start(InputStream is, int maxLen) {
+        StreamDrain drain = new StreamDrain(is, new OutputBuffer(maxLen), null);
+        startThread(drain::drain);
+        return drain;
+    }
+
+    // Collects up to maxLen bytes of output, anything past spillThreshold goes to a temp file
+    public static StreamDrain startSpilling(InputStream is, int maxLen, int spillThreshold) {
+        StreamDrain drain = new StreamDrain(is, new OutputBuffer(maxLen, spillThreshold), null);
+        startThread(drain::drain);
+        return drain;
+    }
+
+    // Hands every line (without its terminator) to onLine as soon as it's read, nothing is accumulated
+    public static StreamDrain startLines(InputStream is, Consumer<String> onLine) {
+        StreamDrain drain = new StreamDrain(is, null, onLine);
+        startThread(drain::drainLines);
+        return drain;
+    }
+
+    private static void startThread(Runnable drain) {
+        Thread thread = new Thread(drain, "stream-drain");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void drain() {
+        byte[] chunk = new byte[8192];
+        try {
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                synchronized (buffer) {
+                    buffer.write(chunk, 0, read);
+                    if (buffer.isFull()) {
+                        // Anything past maxLen is read and discarded so the writer never blocks
+                        done.complete(null);
+                    }
+                }
+            }
+        } catch (IOException ignored) {
+            // the stream is closed when the process is destroyed, or the spill file couldn't be written
+        } finally {
+            done.complete(null);
+        }
+    }
+
+    private void drainLines() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                onLine.accept(line);
+            }
+        } catch (IOException ignored) {
+            // the stream is closed when the process is destroyed
+        } finally {
+            done.complete(null);
+        }
+    }
+
+    // Waits until EOF, maxLen bytes or the deadline. Returns false if the deadline passed first
+    public boolean await(long timeoutMs) {
+        try {
+            done.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    // Completes on EOF or once maxLen bytes were read
+    public CompletableFuture<Void> finished() {
+        return done;
+    }
+
+    // The captured output, null when draining lines
+    public OutputBuffer getBuffer() {
+        return buffer;
+    }
+
+    // Returns everything read so far, always empty when draining lines
+    public String getOutput() {
+        if (buffer == null) {
+            return "";
+        }
+        synchronized (buffer) {
+            return buffer.toString();
+        }
+    }
+}
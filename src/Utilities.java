@@ -1,4 +1,6 @@
 import java.io.*;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -6,10 +8,10 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -24,33 +26,67 @@ public class Utilities {
         if (maxLen < 0) {
             return "";
         }
-        byte[] buff = new byte[0];
+        OutputBuffer output = new OutputBuffer(maxLen);
+        boolean eof = output.readFrom(is);
+        if (eof && throwException && maxLen != Integer.MAX_VALUE) {
+            throw new EOFException("Detect premature EOF");
+        }
+        return output.toString();
+    }
 
-        int actualRead;
-        for (int i = 0; i < maxLen; i += actualRead) {
-            int overflow;
-            if (i >= buff.length) {
-                overflow = Math.min(maxLen - i, buff.length + 1024);
-                if (buff.length < i + overflow) {
-                    buff = Arrays.copyOf(buff, i + overflow);
+    // Destroys the process along with everything it spawned (e.g. adb started through cmd /c).
+    // Descendants are only reachable through ProcessHandle on JDK 9+, on JDK 8 only the process itself is destroyed
+    public static void destroyProcessTree(Process proc) {
+        try {
+            Method descendants = Process.class.getMethod("descendants");
+            Method destroyForcibly = Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly");
+            Stream<?> handles = (Stream<?>) descendants.invoke(proc);
+            handles.forEach(handle -> {
+                try {
+                    destroyForcibly.invoke(handle);
+                } catch (ReflectiveOperationException ignored) {
                 }
-            } else {
-                overflow = buff.length - i;
-            }
+            });
+        } catch (ReflectiveOperationException ignored) {
+        }
+        proc.destroyForcibly();
+    }
 
-            actualRead = is.read(buff, i, overflow);
-            if (actualRead < 0) {
-                if (throwException && maxLen != 2147483647) {
-                    throw new EOFException("Detect premature EOF");
-                }
+    // Resolves fileName in the directory the classes (or the jar) are run from
+    public static Path pathNextToExecutable(String fileName) {
+        try {
+            URL url = Main.class.getProtectionDomain().getCodeSource().getLocation();
+            Path location = Paths.get(url.toURI());
+            Path dir = Files.isDirectory(location) ? location : location.getParent();
+            return dir.resolve(fileName);
+        } catch (URISyntaxException | SecurityException e) {
+            return Paths.get(fileName);
+        }
+    }
 
-                if (buff.length != i) {
-                    buff = Arrays.copyOf(buff, i);
-                }
-                break;
+    // POSIX sh single quoting, words made of only safe characters are left as they are
+    public static String shellQuote(String arg) {
+        if (!needsShellQuoting(arg)) {
+            return arg;
+        }
+        // inside single quotes nothing is special except ' itself, which is written as '\''
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+
+    public static boolean needsShellQuoting(String arg) {
+        if (arg.isEmpty()) {
+            return true;
+        }
+        for (int i = 0; i < arg.length(); i++) {
+            char c = arg.charAt(i);
+            boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '-' || c == '.' || c == '/' || c == ':' || c == '=' || c == '@'
+                    || c == '%' || c == '+' || c == ',';
+            if (!safe) {
+                return true;
             }
         }
-        return new String(buff);
+        return false;
     }
 
     public static String convertURLToString(URL url) {
@@ -90,12 +126,12 @@ public class Utilities {
 
     public static void errExit(String message) {
         System.err.println(message);
-        System.exit(1);
+        Daemon.exit(1);
     }
 
     public static void okExit(String message) {
         System.out.println(message);
-        System.exit(0);
+        Daemon.exit(0);
     }
 
     public static String getExtension(String filename) {